@@ -98,12 +98,59 @@ interface JavacOptions {
     
     /**
      * Java source.
-     * If not specified, file at [path] will be read.
+     * If not specified, the open document at [path] will be used, or the file at [path] will be read.
      */
     text?: string;
+    
+    /**
+     * If text is not specified and [path] is an open document, the version we expect it to be at.
+     */
+    version?: number;
+}
+
+export interface RequestDidOpen {
+    path: string;
+    version: number;
+    text: string;
+}
+
+export interface RequestDidChange {
+    path: string;
+    
+    /**
+     * Version of the document after all changes have been applied
+     */
+    version: number;
+    
+    /**
+     * Edits to apply, in order.
+     * If range is not specified, text replaces the entire document.
+     */
+    changes: {
+        range?: Range;
+        text: string;
+    }[];
+}
+
+export interface RequestDidClose {
+    path: string;
 }
 
 export interface RequestLint extends JavacOptions {
+    /**
+     * Send the syntax errors of path as soon as it's parsed, in a partial ResponseLint
+     */
+    stream?: boolean;
+    
+    /**
+     * Respond with the messages added and removed since the last lint response, instead of every message
+     */
+    delta?: boolean;
+    
+    /**
+     * Check the files that depend on path later, and send their messages to onPushedLint
+     */
+    push?: boolean;
 }
 
 export interface RequestAutocomplete extends JavacOptions {
@@ -114,6 +161,23 @@ export interface ResponseLint {
     messages: {
         [uri: string]: LintMessage[];
     }
+    
+    /**
+     * More responses to the same request are coming, and the last one replaces this
+     */
+    partial: boolean;
+    
+    /**
+     * Instead of messages, added and removed have the changes since the last lint response that wasn't partial.
+     * Files whose messages didn't change are left out.
+     */
+    delta: boolean;
+    added: {
+        [uri: string]: LintMessage[];
+    }
+    removed: {
+        [uri: string]: LintMessage[];
+    }
 }
 
 export interface Range {
@@ -234,6 +298,61 @@ export interface GotoLocation {
     range: Range;
 }
 
+export interface RequestStats {
+    /**
+     * Start counting again from zero after responding
+     */
+    reset?: boolean;
+}
+
+export interface ResponseStats {
+    /**
+     * Time spent in each javac phase, by phase name (PARSE, ENTER, ANALYZE, ...)
+     */
+    phases: {[phase: string]: Timing};
+    
+    /**
+     * How many times each source file has been parsed
+     */
+    compiledFiles: {[path: string]: number};
+    
+    /**
+     * Number of classes javac has read from .class files
+     */
+    classesRead: number;
+    
+    /**
+     * Time spent answering each type of request, by request type
+     */
+    requests: {[requestType: string]: Timing};
+    
+    /**
+     * How many source files the background indexer has parsed
+     */
+    indexedFiles: number;
+    
+    /**
+     * How many source files the background indexer has found
+     */
+    filesToIndex: number;
+    
+    /**
+     * Number of declarations in the index of each compiler, added up
+     */
+    classIndexSize: number;
+}
+
+export interface Timing {
+    count: number;
+    totalMillis: number;
+    maxMillis: number;
+    
+    /**
+     * histogram[0] counts durations under 1ms, histogram[i] counts durations from 2^(i-1)ms up to 2^i ms
+     */
+    histogram: number[];
+}
+
 /**
  * Starts an external java process running org.javacs.Main
  * Invokes functions on this process using a local network socket.
@@ -248,6 +367,9 @@ export class JavacServices {
     /** What to do after each response comes back */
     private requestCallbacks: { [requestId: number]: (response: Response) => void } = {};
 
+    /** What to do with the messages of dependents, which the server sends after a lint with push */
+    onPushedLint: (lint: ResponseLint) => void = lint => {};
+
     constructor(javaExecutablePath: string,
                 javacServicesClassPath: string[],
                 port: number,
@@ -295,8 +417,11 @@ export class JavacServices {
         return this.doRequest('echo', message);
     }
 
-    lint(request: RequestLint): Promise<ResponseLint> {
-        return this.doRequest('lint', request);
+    /**
+     * If request.stream, onPartial gets the syntax errors before the promise resolves with all the errors
+     */
+    lint(request: RequestLint, onPartial?: (partial: ResponseLint) => void): Promise<ResponseLint> {
+        return this.doRequest('lint', request, onPartial);
     }
 
     autocomplete(request: RequestAutocomplete): Promise<ResponseAutocomplete> {
@@ -306,8 +431,24 @@ export class JavacServices {
     goto(request: RequestGoto): Promise<ResponseGoto> {
         return this.doRequest('goto', request);
     }
+    
+    didOpen(request: RequestDidOpen): Promise<void> {
+        return this.doRequest('didOpen', request);
+    }
+    
+    didChange(request: RequestDidChange): Promise<void> {
+        return this.doRequest('didChange', request);
+    }
+    
+    didClose(request: RequestDidClose): Promise<void> {
+        return this.doRequest('didClose', request);
+    }
+    
+    stats(request: RequestStats): Promise<ResponseStats> {
+        return this.doRequest('stats', request);
+    }
 
-    private doRequest(type: string, payload: any): Promise<any> {
+    private doRequest(type: string, payload: any, onPartial?: (partial: any) => void): Promise<any> {
         var requestId = this.requestCounter++;
 
         return new Promise((resolve, reject) => {
@@ -323,6 +464,10 @@ export class JavacServices {
             this.requestCallbacks[requestId] = response => {
                 if (response.error != null)
                     reject(response.error.message);
+                else if (response[type] != null && response[type].partial) {
+                    if (onPartial)
+                        onPartial(response[type]);
+                }
                 else
                     resolve(response[type]);
             }
@@ -337,14 +482,19 @@ export class JavacServices {
         
         if (response.requestId != null) {
             var todo = this.requestCallbacks[response.requestId];
+            var partial = Object.keys(response).some(type => response[type] != null && response[type].partial);
 
-            this.requestCallbacks[response.requestId] = null;
+            // Partial responses are followed by more responses to the same request
+            if (!partial)
+                this.requestCallbacks[response.requestId] = null;
 
             if (!todo)
                 console.error('No callback registered for request id ' + response.requestId);
             else 
                 todo(response);
         }
+        else if (response.lint)
+            this.onPushedLint(response.lint);
     }
 }
 
@@ -365,9 +515,9 @@ interface Request {
 
 interface Response {
     /**
-     * Matches Request#requestId
+     * Matches Request#requestId, or absent if nobody asked for this response
      */
-    requestId: number;
+    requestId?: number;
     
     /**
      * Response data specific to the request type (line, autocomplete, etc)
@@ -0,0 +1,14 @@
+package com.sun.tools.javac.comp;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.util.Context;
+
+/**
+ * Enter keeps the environment of every class it has entered, and only desugar, which we don't run, removes them,
+ * so we have to live in Enter's package to forget the environments of a file we're done with
+ */
+public class TypeEnvs {
+    public static void remove(Context context, Symbol.TypeSymbol type) {
+        Enter.instance(context).typeEnvs.remove(type);
+    }
+}
@@ -97,7 +97,9 @@ public class AutocompleteVisitor extends CursorScanner {
             JavacScope scope = trees.getScope(path);
 
             while (scope != null) {
-                LOG.info(Joiner.on(", ").join(scope.getLocalElements()));
+                JavacScope logScope = scope;
+
+                LOG.info(() -> Joiner.on(", ").join(logScope.getLocalElements()));
 
                 for (Element e : scope.getLocalElements())
                     addElement(e);
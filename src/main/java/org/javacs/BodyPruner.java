@@ -0,0 +1,64 @@
+package org.javacs;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeInfo;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.List;
+
+/**
+ * Empties every method body and initializer block that doesn't contain the cursor,
+ * so the compiler only has to attribute the member the user is looking at.
+ * Use this before entering the tree.
+ */
+public class BodyPruner extends BaseScanner {
+    private final long cursor;
+
+    /**
+     * The source positions of the bodies we emptied
+     */
+    public final RangeSet<Long> pruned = TreeRangeSet.create();
+
+    public BodyPruner(long cursor, Context context) {
+        super(context);
+
+        this.cursor = cursor;
+    }
+
+    @Override
+    public void visitMethodDef(JCTree.JCMethodDecl tree) {
+        if (tree.body != null && !prune(tree.body))
+            super.visitMethodDef(tree);
+    }
+
+    @Override
+    public void visitClassDef(JCTree.JCClassDecl tree) {
+        for (JCTree member : tree.defs) {
+            // Initializer blocks are the only blocks that are directly inside a class
+            if (member instanceof JCTree.JCBlock)
+                prune((JCTree.JCBlock) member);
+        }
+
+        super.visitClassDef(tree);
+    }
+
+    /**
+     * Empty body if it doesn't contain the cursor
+     *
+     * @return true if we emptied body
+     */
+    private boolean prune(JCTree.JCBlock body) {
+        long start = TreeInfo.getStartPos(body);
+        long end = TreeInfo.endPos(body);
+
+        if (body.stats.isEmpty() || (start <= cursor && cursor <= end))
+            return false;
+
+        body.stats = List.nil();
+        pruned.add(Range.closed(start, end));
+
+        return true;
+    }
+}
@@ -1,36 +1,45 @@
 package org.javacs;
 
+import com.sun.tools.javac.code.Flags;
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.tree.JCTree;
-import com.sun.tools.javac.tree.TreeInfo;
 import com.sun.tools.javac.util.Context;
-import com.sun.tools.javac.util.Name;
 
 import javax.tools.JavaFileObject;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Remembers the tree of every class symbol so we can locate symbols later.
+ * Remembers where every class, method and field we've analyzed is declared, so we can locate symbols later.
+ * We only keep positions, keyed by SymbolIndex#key, so the trees can be garbage-collected after each compile.
+ * Local variables don't have keys; look for them in the tree that refers to them.
+ * <p>
+ * Each file owns the declarations we found in it the last time we analyzed it.
+ * When we analyze it again, they're replaced.
+ * We don't check the disk when we locate a symbol, so whoever finds out that a file was deleted, by failing to read it, calls deleted.
  */
 public class ClassIndex extends BaseScanner {
     private static final Logger LOG = Logger.getLogger("main");
 
-    private final Map<Symbol.ClassSymbol, Declared> classes = new HashMap<>();
+    private final Map<String, SymbolLocation> declarations = new ConcurrentHashMap<>();
 
-    private static class Declared {
-        public final JCTree.JCCompilationUnit compilationUnit;
-        public final JCTree.JCClassDecl classDeclaration;
+    /**
+     * The declarations we found in each file, the last time we analyzed it
+     */
+    private final Map<URI, Map<String, SymbolLocation>> byFile = new HashMap<>();
 
-        private Declared(JCTree.JCCompilationUnit compilationUnit, JCTree.JCClassDecl classDeclaration) {
-            this.compilationUnit = compilationUnit;
-            this.classDeclaration = classDeclaration;
-        }
-    }
+    /**
+     * Files we read from disk, rather than from the editor, so if they can't be read they've been deleted
+     */
+    private final Set<URI> fromDisk = new HashSet<>();
+
+    private URI file;
+    private CharSequence content;
+    private Map<String, SymbolLocation> found;
 
     public ClassIndex(Context context) {
         super(context);
@@ -38,54 +47,143 @@ public class ClassIndex extends BaseScanner {
         context.put(ClassIndex.class, this);
     }
 
+    @Override
+    public void visitTopLevel(JCTree.JCCompilationUnit tree) {
+        if (tree.getSourceFile().getKind() != JavaFileObject.Kind.SOURCE)
+            return;
+
+        try {
+            file = tree.getSourceFile().toUri();
+            content = tree.getSourceFile().getCharContent(false);
+            found = new HashMap<>();
+
+            super.visitTopLevel(tree);
+
+            replace(file, found, !(tree.getSourceFile() instanceof StringFileObject));
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Error indexing " + tree.getSourceFile(), e);
+        } finally {
+            file = null;
+            content = null;
+            found = null;
+        }
+    }
+
     @Override
     public void visitClassDef(JCTree.JCClassDecl tree) {
+        // Anonymous classes don't have a name to go to
+        if (tree.sym != null && !tree.name.isEmpty()) {
+            int start = nameOffset(content, tree);
+
+            if (start != -1)
+                declare(tree.sym, start, start + tree.name.length());
+        }
+
         super.visitClassDef(tree);
+    }
 
-        classes.put(tree.sym, new Declared(compilationUnit, tree));
+    @Override
+    public void visitMethodDef(JCTree.JCMethodDecl tree) {
+        if (tree.sym != null) {
+            if (!tree.sym.isConstructor())
+                declare(tree.sym, tree.pos, tree.pos + tree.name.length());
+            // Default constructors aren't in the source, so the closest thing is the name of the class
+            else if ((tree.sym.flags() & Flags.GENERATEDCONSTR) != 0)
+                SymbolIndex.key(tree.sym.owner).map(found::get).ifPresent(location -> declare(tree.sym, location.startPosition, location.endPosition));
+            // Constructors are named <init>, but their name in the source is the name of the class
+            else
+                declare(tree.sym, tree.pos, tree.pos + tree.sym.owner.name.length());
+        }
+
+        super.visitMethodDef(tree);
     }
 
     @Override
-    public void visitTopLevel(JCTree.JCCompilationUnit tree) {
-        if (tree.getSourceFile().getKind() == JavaFileObject.Kind.SOURCE)
-            super.visitTopLevel(tree);
+    public void visitVarDef(JCTree.JCVariableDecl tree) {
+        if (tree.sym != null && tree.sym.owner instanceof Symbol.ClassSymbol)
+            declare(tree.sym, tree.pos, tree.pos + tree.name.length());
+
+        super.visitVarDef(tree);
     }
 
-    public Optional<SymbolLocation> locate(Symbol symbol) {
-        try {
-            // Look up AST of class that declared this symbol
-            Symbol.ClassSymbol declaringClass = symbol.enclClass();
-            Declared declared = classes.get(declaringClass);
+    private void declare(Symbol symbol, long start, long end) {
+        SymbolIndex.key(symbol).ifPresent(key -> found.put(key, new SymbolLocation(file, start, end)));
+    }
 
-            if (declared == null)
-                return Optional.empty();
+    /**
+     * Replace the declarations of file with declared
+     */
+    private synchronized void replace(URI file, Map<String, SymbolLocation> declared, boolean onDisk) {
+        Map<String, SymbolLocation> old = byFile.put(file, declared);
 
-            // Find declaration of symbol within AST
-            JCTree declaration = TreeInfo.declarationFor(symbol, declared.classDeclaration);
+        // Only remove declarations that another file hasn't replaced
+        if (old != null)
+            old.forEach(declarations::remove);
 
-            if (declaration == null)
-                return Optional.empty();
+        declarations.putAll(declared);
 
-            // Declaration should include offset
-            int offset = declaration.pos;
+        if (onDisk)
+            fromDisk.add(file);
+        else
+            fromDisk.remove(file);
+    }
 
-            // If symbol is a class, offset points to 'class' keyword, not name
-            // Find the name by searching the text of the source, starting at the 'class' keyword
-            if (symbol instanceof Symbol.ClassSymbol) {
-                CharSequence content = declared.compilationUnit.sourcefile.getCharContent(false);
-                Name name = symbol.getSimpleName();
+    /**
+     * Forget the declarations of file, because it has been deleted from disk.
+     * If we got file from the editor, it may not have been saved yet, so we keep it.
+     *
+     * @return true if we forgot file
+     */
+    public synchronized boolean deleted(URI file) {
+        if (!fromDisk.contains(file))
+            return false;
 
-                offset = indexOf(content, name, offset);
-            }
+        Map<String, SymbolLocation> old = byFile.remove(file);
 
-            int end = offset + symbol.name.length();
+        if (old != null)
+            old.forEach(declarations::remove);
 
-            return Optional.of(new SymbolLocation(declared.compilationUnit.sourcefile, offset, end));
-        } catch (IOException e) {
-            LOG.log(Level.SEVERE, "Error getting location of symbol " + symbol, e);
+        fromDisk.remove(file);
 
-            return Optional.empty();
-        }
+        return true;
+    }
+
+    /**
+     * Whether we have analyzed file, even if we've forgotten its tree since
+     */
+    public synchronized boolean analyzed(URI file) {
+        return byFile.containsKey(file);
+    }
+
+    /**
+     * Where symbol is declared, if it's a class, method or field that we've analyzed
+     */
+    public Optional<SymbolLocation> locate(Symbol symbol) {
+        return SymbolIndex.key(symbol).map(declarations::get);
+    }
+
+    /**
+     * Number of declarations in the index
+     */
+    public int size() {
+        return declarations.size();
+    }
+
+    /**
+     * Offset of the name of the class declared by tree.
+     * The tree points at the 'class', 'interface', 'enum' or '@interface' keyword, not the name,
+     * so we skip the keyword, which may contain the name, like 'enum Num', and look for the name after it.
+     */
+    static int nameOffset(CharSequence content, JCTree.JCClassDecl tree) {
+        int keyword = tree.pos;
+
+        if (keyword < content.length() && content.charAt(keyword) == '@')
+            keyword++;
+
+        while (keyword < content.length() && Character.isJavaIdentifierPart(content.charAt(keyword)))
+            keyword++;
+
+        return indexOf(content, tree.name, keyword);
     }
 
     /**
@@ -98,7 +196,7 @@ public class ClassIndex extends BaseScanner {
      * @param   target       the characters being searched for.
      * @param   fromIndex    the index to begin searching from.
      */
-    private static int indexOf(CharSequence source, CharSequence target, int fromIndex) {
+    static int indexOf(CharSequence source, CharSequence target, int fromIndex) {
         int sourceOffset = 0, sourceCount = source.length(), targetOffset = 0, targetCount = target.length();
 
         if (fromIndex >= sourceCount) {
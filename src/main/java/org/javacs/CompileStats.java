@@ -0,0 +1,61 @@
+package org.javacs;
+
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import org.javacs.message.ResponseStats;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures how long javac spends in each phase, and how often it compiles each file.
+ * The thread that runs the compiler records, while the stats request may read from another thread.
+ */
+public class CompileStats implements TaskListener {
+    private final CountingClassReader reader;
+    private final Map<TaskEvent.Kind, Histogram> phases = new EnumMap<>(TaskEvent.Kind.class);
+    private final Map<String, Integer> compiledFiles = new HashMap<>();
+    // Events of the same kind nest, for example ANALYZE fires once for each class in a file,
+    // so we remember when each one started by kind, file and class
+    private final Map<String, Long> started = new HashMap<>();
+
+    public CompileStats(CountingClassReader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public synchronized void started(TaskEvent e) {
+        started.put(key(e), System.nanoTime());
+    }
+
+    @Override
+    public synchronized void finished(TaskEvent e) {
+        Long start = started.remove(key(e));
+
+        if (start != null)
+            phases.computeIfAbsent(e.getKind(), kind -> new Histogram()).record(System.nanoTime() - start);
+
+        if (e.getKind() == TaskEvent.Kind.PARSE && e.getSourceFile() != null)
+            compiledFiles.merge(e.getSourceFile().getName(), 1, Integer::sum);
+    }
+
+    private static String key(TaskEvent e) {
+        return e.getKind() + " " + e.getSourceFile() + " " + e.getTypeElement();
+    }
+
+    /**
+     * Add what we've measured so far to stats, which may already have measurements from other compilers
+     */
+    public synchronized void summarize(ResponseStats stats) {
+        phases.forEach((kind, histogram) -> stats.phases.merge(kind.name(), histogram.summarize(), Histogram::combine));
+        compiledFiles.forEach((file, count) -> stats.compiledFiles.merge(file, count, Integer::sum));
+        stats.classesRead += reader.classesRead();
+    }
+
+    public synchronized void reset() {
+        phases.clear();
+        compiledFiles.clear();
+        reader.reset();
+    }
+}
@@ -0,0 +1,85 @@
+package org.javacs;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.util.Log;
+import com.sun.tools.javac.util.Name;
+
+import javax.tools.JavaFileObject;
+import java.net.URI;
+import java.util.*;
+
+/**
+ * Replaces Check.compiled, the table of every class javac has entered, with one that also remembers which source file declared each class,
+ * so we can forget the classes of one file without looking at every class we've ever compiled.
+ */
+public class CompiledClasses extends HashMap<Name, Symbol.ClassSymbol> {
+    private final Log log;
+    private final Map<URI, Set<Name>> bySource = new HashMap<>();
+    private final Map<Name, URI> sourceOf = new HashMap<>();
+
+    public CompiledClasses(Log log) {
+        this.log = log;
+    }
+
+    @Override
+    public Symbol.ClassSymbol put(Name flatname, Symbol.ClassSymbol symbol) {
+        // Enter puts the class here before it sets symbol.sourcefile, but it has already pointed log at the file it is entering
+        JavaFileObject source = log.currentSourceFile();
+
+        if (source == null)
+            source = symbol.sourcefile;
+
+        if (source != null) {
+            forget(flatname);
+
+            bySource.computeIfAbsent(source.toUri(), newSource -> new HashSet<>()).add(flatname);
+            sourceOf.put(flatname, source.toUri());
+        }
+
+        return super.put(flatname, symbol);
+    }
+
+    @Override
+    public Symbol.ClassSymbol remove(Object flatname) {
+        forget(flatname);
+
+        return super.remove(flatname);
+    }
+
+    @Override
+    public void clear() {
+        bySource.clear();
+        sourceOf.clear();
+
+        super.clear();
+    }
+
+    private void forget(Object flatname) {
+        URI source = sourceOf.remove(flatname);
+
+        if (source != null)
+            bySource.get(source).remove(flatname);
+    }
+
+    /**
+     * Remove all the classes that were declared in source
+     *
+     * @return The classes we removed
+     */
+    public List<Symbol.ClassSymbol> removeSource(URI source) {
+        Set<Name> names = bySource.remove(source);
+
+        if (names == null)
+            return Collections.emptyList();
+
+        List<Symbol.ClassSymbol> removed = new ArrayList<>();
+
+        for (Name name : names) {
+            sourceOf.remove(name);
+
+            removed.add(super.remove(name));
+        }
+
+        return removed;
+    }
+}
@@ -0,0 +1,263 @@
+package org.javacs;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Several compilers with the same options, so requests can compile in parallel.
+ * javac isn't thread-safe, so each compiler is used by one request at a time.
+ * <p>
+ * Each compiler caches the files it has compiled, and remembers which files depend on them,
+ * so each file sticks to the first compiler that compiled it.
+ * Lint waits for that compiler, so the errors of a file and its dependents always come from the same one.
+ * Autocomplete and goto take any free compiler if that one is busy, because someone is waiting on them.
+ * Lint can use all but one of the compilers, so there is always one left for autocomplete and goto.
+ * <p>
+ * When one compiler parses a new version of a file, the others catch up with it before their next lease,
+ * so a file compiled by one compiler is never out of date in another.
+ */
+public class CompilerPool {
+    public enum Use {
+        /**
+         * Someone is waiting on the answer, like autocomplete or goto
+         */
+        INTERACTIVE,
+        /**
+         * Nobody notices if it's a little late, like lint
+         */
+        BACKGROUND
+    }
+
+    /**
+     * How many paths to remember the compiler of, set with -Djavacs.maxAffinity=N
+     */
+    private static final int MAX_AFFINITY = Integer.getInteger("javacs.maxAffinity", 1000);
+
+    private final List<JavacHolder> compilers;
+    private final boolean[] busy;
+    private final int maxBackground;
+
+    /**
+     * The compiler that each of the most recently used files sticks to, by path
+     */
+    private final Map<String, Integer> affinity = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_AFFINITY;
+        }
+    };
+    private int waitingInteractive = 0, runningBackground = 0;
+
+    /**
+     * The files each compiler has to catch up with, and the hash of their new text, or empty if they were deleted
+     */
+    private final List<Map<URI, Optional<HashCode>>> changed = new ArrayList<>();
+
+    /**
+     * Someone has asked to close the compilers, which we do as soon as none of them are in use
+     */
+    private boolean closing = false, closed = false;
+
+    public CompilerPool(List<JavacHolder> compilers) {
+        this.compilers = ImmutableList.copyOf(compilers);
+        this.busy = new boolean[compilers.size()];
+        this.maxBackground = Math.max(1, compilers.size() - 1);
+
+        for (JavacHolder compiler : compilers) {
+            changed.add(new LinkedHashMap<>());
+
+            compiler.onParse((tree, hash) -> changed(compiler, tree.getSourceFile().toUri(), Optional.of(hash)));
+        }
+    }
+
+    /**
+     * A compiler that only the holder of this lease is using
+     */
+    public class Lease implements AutoCloseable {
+        public final JavacHolder compiler;
+        private final int index;
+        private final Use use;
+
+        private Lease(int index, Use use) {
+            this.compiler = compilers.get(index);
+            this.index = index;
+            this.use = use;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /**
+     * Wait for a compiler to compile path, and bring it up to date with the files the other compilers have changed.
+     * If this thread is interrupted while we're waiting, throws CancellationException.
+     */
+    public Lease acquire(String path, Use use) {
+        Lease lease = waitFor(path, use);
+
+        try {
+            catchUp(lease);
+
+            return lease;
+        } catch (RuntimeException e) {
+            lease.close();
+
+            throw e;
+        }
+    }
+
+    private synchronized Lease waitFor(String path, Use use) {
+        if (use == Use.INTERACTIVE)
+            waitingInteractive++;
+
+        try {
+            while (true) {
+                if (closed)
+                    throw new CancellationException("Compilers have been closed");
+
+                OptionalInt free = choose(path, use);
+
+                if (free.isPresent()) {
+                    int index = free.getAsInt();
+
+                    busy[index] = true;
+                    affinity.putIfAbsent(path, index);
+
+                    if (use == Use.BACKGROUND)
+                        runningBackground++;
+
+                    return new Lease(index, use);
+                }
+
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new CancellationException("Cancelled while waiting for a compiler");
+        } finally {
+            if (use == Use.INTERACTIVE)
+                waitingInteractive--;
+        }
+    }
+
+    private OptionalInt choose(String path, Use use) {
+        // Background work waits until interactive requests have all been served
+        if (use == Use.BACKGROUND && (waitingInteractive > 0 || runningBackground >= maxBackground))
+            return OptionalInt.empty();
+
+        Integer sticky = affinity.get(path);
+
+        if (sticky != null && !busy[sticky])
+            return OptionalInt.of(sticky);
+
+        if (sticky != null && use == Use.BACKGROUND)
+            return OptionalInt.empty();
+
+        for (int i = 0; i < busy.length; i++) {
+            if (!busy[i])
+                return OptionalInt.of(i);
+        }
+
+        return OptionalInt.empty();
+    }
+
+    /**
+     * Tell the compiler of lease about the files the other compilers have changed, one at a time, outside the lock.
+     * If we're cancelled, the files we haven't caught up with wait for the next lease.
+     */
+    private void catchUp(Lease lease) {
+        Map<URI, Optional<HashCode>> queue = changed.get(lease.index);
+
+        while (true) {
+            Map.Entry<URI, Optional<HashCode>> next;
+
+            synchronized (this) {
+                Iterator<Map.Entry<URI, Optional<HashCode>>> each = queue.entrySet().iterator();
+
+                if (!each.hasNext())
+                    return;
+
+                next = each.next();
+                each.remove();
+            }
+
+            try {
+                lease.compiler.changed(next.getKey(), next.getValue());
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    queue.putIfAbsent(next.getKey(), next.getValue());
+                }
+
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * by has parsed the version of file whose text has hash, or if hash is empty, has found that file was deleted,
+     * so the other compilers have to catch up with it
+     */
+    public synchronized void changed(JavacHolder by, URI file, Optional<HashCode> hash) {
+        for (int i = 0; i < compilers.size(); i++) {
+            if (compilers.get(i) != by) {
+                Map<URI, Optional<HashCode>> queue = changed.get(i);
+
+                // Keep the queue in the order files changed in
+                queue.remove(file);
+                queue.put(file, hash);
+            }
+        }
+    }
+
+    private synchronized void release(Lease lease) {
+        busy[lease.index] = false;
+
+        if (lease.use == Use.BACKGROUND)
+            runningBackground--;
+
+        closeIfIdle();
+
+        notifyAll();
+    }
+
+    /**
+     * Close all the compilers once the requests that are using them are done.
+     * Requests that are waiting for a compiler still get one; acquire fails once the compilers are closed.
+     */
+    public synchronized void close() {
+        closing = true;
+
+        closeIfIdle();
+    }
+
+    private void closeIfIdle() {
+        if (!closing || closed || waitingInteractive > 0)
+            return;
+
+        for (boolean each : busy) {
+            if (each)
+                return;
+        }
+
+        closed = true;
+        compilers.forEach(JavacHolder::close);
+    }
+
+    /**
+     * All the compilers, including ones that are in use
+     */
+    public List<JavacHolder> all() {
+        return compilers;
+    }
+
+    public int size() {
+        return compilers.size();
+    }
+}
@@ -0,0 +1,53 @@
+package org.javacs;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.jvm.ClassReader;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Name;
+
+import javax.tools.JavaFileObject;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Counts how many classes javac reads from .class files on the class path.
+ * CountingClassReader registers itself in context and pre-empts the normal ClassReader from being created,
+ * so it has to be created after the file manager and before anything else that uses ClassReader.
+ */
+public class CountingClassReader extends ClassReader {
+    private static final AtomicIntegerFieldUpdater<CountingClassReader> CLASSES_READ = AtomicIntegerFieldUpdater.newUpdater(CountingClassReader.class, "classesRead");
+
+    // No initializer, because Symtab calls defineClass from inside the super constructor
+    // Counted on the compiling thread and read by the stats request on another, so updated atomically
+    private volatile int classesRead;
+
+    public CountingClassReader(Context context) {
+        super(context, true);
+    }
+
+    /**
+     * Every class symbol starts out with ClassReader's completer,
+     * which fills it in from a class file or a source file, whichever it finds first.
+     */
+    @Override
+    public Symbol.ClassSymbol defineClass(Name name, Symbol owner) {
+        Symbol.ClassSymbol c = super.defineClass(name, owner);
+        Symbol.Completer read = c.completer;
+
+        c.completer = sym -> {
+            read.complete(sym);
+
+            if (c.classfile != null && c.classfile.getKind() == JavaFileObject.Kind.CLASS)
+                CLASSES_READ.incrementAndGet(this);
+        };
+
+        return c;
+    }
+
+    public int classesRead() {
+        return classesRead;
+    }
+
+    public void reset() {
+        classesRead = 0;
+    }
+}
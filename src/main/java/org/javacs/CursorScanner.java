@@ -25,7 +25,8 @@ public class CursorScanner extends BaseScanner {
     protected boolean containsCursor(JCTree node) {
         JavaFileObject nodeFile = compilationUnit.getSourceFile();
 
-        if (!nodeFile.equals(file))
+        // Compare by URI, because a reused tree may have been parsed from an earlier object with the same text
+        if (!nodeFile.toUri().equals(file.toUri()))
             return false;
 
         JavacTrees trees = JavacTrees.instance(context);
@@ -0,0 +1,209 @@
+package org.javacs;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.sun.tools.javac.code.Flags;
+import com.sun.tools.javac.code.Kinds;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.util.Context;
+
+import javax.tools.JavaFileObject;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Remembers which source files each source file refers to, and a hash of the API each source file declares,
+ * so when a file's API changes we can find the files that need to be checked again.
+ */
+public class DependencyGraph extends BaseScanner {
+    /**
+     * Files that each file refers to
+     */
+    private final Map<URI, Set<URI>> dependencies = new HashMap<>();
+
+    /**
+     * Files that refer to each file
+     */
+    private final Map<URI, Set<URI>> dependents = new HashMap<>();
+
+    /**
+     * Hash of the non-private declarations in each file, the last time we compiled it
+     */
+    private final Map<URI, HashCode> api = new HashMap<>();
+
+    /**
+     * Hash of the non-private declarations in each file, the last time its dependents were checked
+     */
+    private final Map<URI, HashCode> checkedApi = new HashMap<>();
+
+    private Set<URI> references;
+    private Hasher declarations;
+    // Whether the tree we're scanning had some of its bodies emptied by BodyPruner
+    private boolean pruned = false;
+
+    public DependencyGraph(Context context) {
+        super(context);
+    }
+
+    @Override
+    public void visitTopLevel(JCTree.JCCompilationUnit tree) {
+        if (tree.getSourceFile().getKind() != JavaFileObject.Kind.SOURCE)
+            return;
+
+        URI file = tree.getSourceFile().toUri();
+
+        references = new HashSet<>();
+        declarations = Hashing.murmur3_128().newHasher();
+
+        super.visitTopLevel(tree);
+
+        references.remove(file);
+
+        if (pruned) {
+            dependencies.computeIfAbsent(file, newFile -> new HashSet<>()).addAll(references);
+
+            for (URI target : references)
+                dependents.computeIfAbsent(target, newTarget -> new HashSet<>()).add(file);
+
+            return;
+        }
+
+        for (URI old : dependencies.getOrDefault(file, Collections.emptySet()))
+            dependents.getOrDefault(old, Collections.emptySet()).remove(file);
+
+        for (URI target : references)
+            dependents.computeIfAbsent(target, newTarget -> new HashSet<>()).add(file);
+
+        HashCode hash = declarations.hash();
+
+        dependencies.put(file, references);
+        api.put(file, hash);
+        checkedApi.putIfAbsent(file, hash);
+    }
+
+    @Override
+    public void visitClassDef(JCTree.JCClassDecl tree) {
+        if (isApi(tree.sym)) {
+            declare(tree.sym);
+
+            declarations.putString(String.valueOf(tree.sym.getSuperclass()), StandardCharsets.UTF_8);
+            declarations.putString(String.valueOf(tree.sym.getInterfaces()), StandardCharsets.UTF_8);
+        }
+
+        super.visitClassDef(tree);
+    }
+
+    @Override
+    public void visitMethodDef(JCTree.JCMethodDecl tree) {
+        if (isApi(tree.sym))
+            declare(tree.sym);
+
+        super.visitMethodDef(tree);
+    }
+
+    @Override
+    public void visitVarDef(JCTree.JCVariableDecl tree) {
+        // Local variables aren't part of the API
+        if (isApi(tree.sym) && tree.sym.owner instanceof Symbol.ClassSymbol) {
+            declare(tree.sym);
+
+            declarations.putString(String.valueOf(tree.sym.getConstValue()), StandardCharsets.UTF_8);
+        }
+
+        super.visitVarDef(tree);
+    }
+
+    private static boolean isApi(Symbol symbol) {
+        return symbol != null && (symbol.flags() & Flags.PRIVATE) == 0;
+    }
+
+    private void declare(Symbol symbol) {
+        declarations.putLong(symbol.flags() & Flags.ExtendedStandardFlags)
+                    .putString(symbol.flatName(), StandardCharsets.UTF_8)
+                    .putString(String.valueOf(symbol.type), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void visitIdent(JCTree.JCIdent tree) {
+        refer(tree.sym);
+
+        super.visitIdent(tree);
+    }
+
+    @Override
+    public void visitSelect(JCTree.JCFieldAccess tree) {
+        refer(tree.sym);
+
+        super.visitSelect(tree);
+    }
+
+    @Override
+    public void visitNewClass(JCTree.JCNewClass tree) {
+        refer(tree.constructor);
+
+        super.visitNewClass(tree);
+    }
+
+    @Override
+    public void visitReference(JCTree.JCMemberReference tree) {
+        refer(tree.sym);
+
+        super.visitReference(tree);
+    }
+
+    /**
+     * Remember the source file that declares symbol, if it came from a source file
+     */
+    private void refer(Symbol symbol) {
+        Symbol.ClassSymbol outermost = null;
+
+        // Like Symbol#outermostClass, but error symbols may not have an owner
+        for (Symbol s = symbol; s != null && s.kind != Kinds.PCK; s = s.owner) {
+            if (s instanceof Symbol.ClassSymbol)
+                outermost = (Symbol.ClassSymbol) s;
+        }
+
+        if (outermost != null && outermost.sourcefile != null && outermost.sourcefile.getKind() == JavaFileObject.Kind.SOURCE)
+            references.add(outermost.sourcefile.toUri());
+    }
+
+    /**
+     * Remember the files that tree refers to, when BodyPruner has emptied some of its bodies.
+     * The emptied bodies may refer to more files, so we keep the files it referred to before, and leave its API alone.
+     */
+    public void addReferences(JCTree.JCCompilationUnit tree) {
+        pruned = true;
+
+        try {
+            tree.accept(this);
+        } finally {
+            pruned = false;
+        }
+    }
+
+    /**
+     * Files that referred to file the last time we compiled them
+     */
+    public Set<URI> dependents(URI file) {
+        return Collections.unmodifiableSet(dependents.getOrDefault(file, Collections.emptySet()));
+    }
+
+    /**
+     * If the API of file has changed since the last time we asked, the files that refer to it.
+     * Otherwise, nothing.
+     * We only remember where the files are, because the text we last compiled may be out of date by now.
+     */
+    public List<URI> changedDependents(URI file) {
+        HashCode now = api.get(file);
+
+        if (now == null || now.equals(checkedApi.get(file)))
+            return Collections.emptyList();
+
+        checkedApi.put(file, now);
+
+        return new ArrayList<>(dependents.getOrDefault(file, Collections.emptySet()));
+    }
+}
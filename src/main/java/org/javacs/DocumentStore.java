@@ -0,0 +1,94 @@
+package org.javacs;
+
+import org.javacs.message.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Text of the documents that are open in the editor, which may be ahead of the files on disk.
+ * The editor sends the full text once when it opens a document, and only the edits after that,
+ * so requests don't have to carry the whole file.
+ */
+public class DocumentStore {
+    private static final Logger LOG = Logger.getLogger("main");
+
+    private final Map<String, Document> documents = new ConcurrentHashMap<>();
+
+    public static class Document {
+        public final int version;
+        public final String text;
+
+        private Document(int version, String text) {
+            this.version = version;
+            this.text = text;
+        }
+    }
+
+    public void open(RequestDidOpen request) {
+        documents.put(request.path, new Document(request.version, request.text));
+    }
+
+    public void change(RequestDidChange request) throws IOException {
+        Document document = documents.get(request.path);
+
+        if (document == null)
+            throw new ReturnError(request.path + " is not open", null);
+
+        String text = document.text;
+
+        for (DocumentChange change : request.changes)
+            text = apply(text, change);
+
+        documents.put(request.path, new Document(request.version, text));
+    }
+
+    private static String apply(String text, DocumentChange change) throws IOException {
+        if (!change.range.isPresent())
+            return change.text;
+
+        Range range = change.range.get();
+        LineMap lines = LineMap.fromString(text);
+        int start = (int) lines.offset(range.start.line, range.start.character);
+        int end = (int) lines.offset(range.end.line, range.end.character);
+
+        return new StringBuilder(text).replace(start, end, change.text).toString();
+    }
+
+    public void close(RequestDidClose request) {
+        documents.remove(request.path);
+    }
+
+    public Optional<Document> get(String path) {
+        return Optional.ofNullable(documents.get(path));
+    }
+
+    /**
+     * If args doesn't carry its own text, fill it in from the open document at args.path.
+     * If args isn't an open document either, leave text empty, and we'll read the file from disk.
+     */
+    public void resolve(JavacArgs args) {
+        if (args.text != null)
+            return;
+
+        Document document = documents.get(args.path);
+
+        if (document == null) {
+            if (args.version.isPresent())
+                throw new ReturnError(args.path + " is not open", null);
+
+            return;
+        }
+
+        if (args.version.isPresent() && args.version.get() != document.version)
+            throw new ReturnError(args.path + " is at version " + document.version + ", not " + args.version.get(), null);
+
+        LOG.info(() -> "Using version " + document.version + " of " + args.path);
+
+        args.text = document.text;
+        args.version = Optional.of(document.version);
+    }
+}
@@ -2,10 +2,12 @@ package org.javacs;
 
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeInfo;
 import com.sun.tools.javac.util.Context;
 
 import javax.tools.JavaFileObject;
 import java.util.HashSet;
+import java.util.Optional;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -13,9 +15,12 @@ public class GotoDefinitionVisitor extends CursorScanner {
     private static final Logger LOG = Logger.getLogger("main");
 
     public final Set<SymbolLocation> definitions = new HashSet<>();
+    private final SymbolIndex index;
 
-    public GotoDefinitionVisitor(JavaFileObject file, long cursor, Context context) {
+    public GotoDefinitionVisitor(JavaFileObject file, long cursor, Context context, SymbolIndex index) {
         super(file, cursor, context);
+
+        this.index = index;
     }
 
     @Override
@@ -65,6 +70,25 @@ public class GotoDefinitionVisitor extends CursorScanner {
     private void addSymbol(Symbol symbol) {
         LOG.info("Goto " + symbol);
 
-        context.get(ClassIndex.class).locate(symbol).map(definitions::add);
+        boolean local = symbol instanceof Symbol.VarSymbol && !(symbol.owner instanceof Symbol.ClassSymbol);
+        Optional<SymbolLocation> location = local ? locateLocal(symbol) : context.get(ClassIndex.class).locate(symbol);
+
+        // If no compiler has analyzed the file that declares symbol, look for it in the index of the workspace
+        if (!location.isPresent())
+            location = index.locate(symbol);
+
+        location.ifPresent(definitions::add);
+    }
+
+    /**
+     * Local variables are declared in the same file as the cursor, so we look for them in the tree we're scanning
+     */
+    private Optional<SymbolLocation> locateLocal(Symbol symbol) {
+        JCTree declaration = TreeInfo.declarationFor(symbol, compilationUnit);
+
+        if (declaration == null)
+            return Optional.empty();
+
+        return Optional.of(new SymbolLocation(compilationUnit.getSourceFile().toUri(), declaration.pos, declaration.pos + symbol.name.length()));
     }
 }
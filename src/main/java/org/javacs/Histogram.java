@@ -0,0 +1,62 @@
+package org.javacs;
+
+import org.javacs.message.Timing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distribution of durations, in buckets that double in width:
+ * bucket 0 counts durations under 1ms, bucket i counts durations from 2^(i-1)ms up to 2^i ms,
+ * and the last bucket counts everything longer.
+ */
+public class Histogram {
+    private static final int BUCKETS = 16;
+
+    private final long[] buckets = new long[BUCKETS];
+    private long count, totalNanos, maxNanos;
+
+    public synchronized void record(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+
+        buckets[bucket]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public synchronized Timing summarize() {
+        Timing timing = new Timing();
+        List<Long> histogram = new ArrayList<>();
+
+        for (long bucket : buckets)
+            histogram.add(bucket);
+
+        timing.count = count;
+        timing.totalMillis = totalNanos / 1e6;
+        timing.maxMillis = maxNanos / 1e6;
+        timing.histogram = histogram;
+
+        return timing;
+    }
+
+    /**
+     * The distribution of a and b together
+     */
+    public static Timing combine(Timing a, Timing b) {
+        Timing timing = new Timing();
+        List<Long> histogram = new ArrayList<>();
+
+        for (int i = 0; i < BUCKETS; i++)
+            histogram.add(a.histogram.get(i) + b.histogram.get(i));
+
+        timing.count = a.count + b.count;
+        timing.totalMillis = a.totalMillis + b.totalMillis;
+        timing.maxMillis = Math.max(a.maxMillis, b.maxMillis);
+        timing.histogram = histogram;
+
+        return timing;
+    }
+}
@@ -4,6 +4,7 @@ import com.sun.tools.javac.util.Context;
 import com.sun.tools.javac.util.Log;
 
 import javax.tools.JavaFileObject;
+import java.net.URI;
 
 /**
  * Allows use to clear files from Log when we recompile 
@@ -19,4 +20,11 @@ public class IncrementalLog extends Log {
     public void clear(JavaFileObject source) {
         sourceMap.remove(source);
     }
+
+    /**
+     * Clear every version of source, whether it was read from disk or from the editor
+     */
+    public void clear(URI source) {
+        sourceMap.keySet().removeIf(file -> file.toUri().equals(source));
+    }
 }
@@ -2,6 +2,11 @@ package org.javacs;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.util.TaskEvent;
 import com.sun.source.util.TaskListener;
@@ -10,26 +15,39 @@ import com.sun.tools.javac.api.MultiTaskListener;
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.comp.AttrContext;
 import com.sun.tools.javac.comp.Check;
+import com.sun.tools.javac.comp.CompileStates;
 import com.sun.tools.javac.comp.Env;
 import com.sun.tools.javac.comp.Todo;
+import com.sun.tools.javac.comp.TypeEnvs;
 import com.sun.tools.javac.file.JavacFileManager;
+import com.sun.tools.javac.file.ZipFileIndex;
+import com.sun.tools.javac.file.ZipFileIndexCache;
 import com.sun.tools.javac.main.JavaCompiler;
 import com.sun.tools.javac.parser.FuzzyParserFactory;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.TreeScanner;
 import com.sun.tools.javac.util.Context;
-import com.sun.tools.javac.util.Name;
 import com.sun.tools.javac.util.Options;
 
 import javax.tools.*;
+import java.io.File;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.FileTime;
-import java.time.Instant;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 /**
  * Maintains a reference to a Java compiler, 
@@ -39,6 +57,21 @@ import java.util.logging.Logger;
  */
 public class JavacHolder {
     private static final Logger LOG = Logger.getLogger("main");
+    /**
+     * Where we keep the index of each jar, in the output directory
+     */
+    public static final String ZIP_INDEX = "zip-index";
+    /**
+     * How many parsed files to keep, set with -Djavacs.maxParsed=N
+     */
+    static final int MAX_PARSED = Integer.getInteger("javacs.maxParsed", 50);
+    /**
+     * Saves the indexes of jars, so writing them doesn't hold up the request that listed them
+     */
+    private static final ExecutorService jarIndexer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("jar-index-%d")
+                                                                                                              .setDaemon(true)
+                                                                                                              .setPriority(Thread.MIN_PRIORITY)
+                                                                                                              .build());
     private final List<Path> classPath;
     private final List<Path> sourcePath;
     private final Path outputDirectory;
@@ -48,9 +81,14 @@ public class JavacHolder {
     // Error reporting initially goes nowhere
     // When we want to report errors back to VS Code, we'll replace this with something else
     private DiagnosticListener<JavaFileObject> errorsDelegate = diagnostic -> {};
+    // While we're parsing or compiling a file we might reuse later, we keep a copy of its errors here
+    private List<Diagnostic<? extends JavaFileObject>> recording = null;
     // javac isn't friendly to swapping out the error-reporting DiagnosticListener,
     // so we install this intermediate DiagnosticListener, which forwards to errorsDelegate
     private final DiagnosticListener<JavaFileObject> errors = diagnostic -> {
+        if (recording != null)
+            recording.add(diagnostic);
+
         errorsDelegate.report(diagnostic);
     };
 
@@ -60,7 +98,15 @@ public class JavacHolder {
     // IncrementalLog registers itself in context and pre-empts the normal Log from being created
     private final IncrementalLog log = new IncrementalLog(context);
     public final JavacFileManager fileManager = new JavacFileManager(context, true, null);
+    // CountingClassReader registers itself in context and pre-empts the normal ClassReader from being created
+    private final CountingClassReader reader = new CountingClassReader(context);
     private final Check check = Check.instance(context);
+    // Check.compiled is a plain HashMap, which we replace with one that we can search by source file
+    private final CompiledClasses compiled = new CompiledClasses(log);
+
+    {
+        check.compiled = compiled;
+    }
     // FuzzyParserFactory registers itself in context and pre-empts the normal ParserFactory from being created
     private final FuzzyParserFactory parserFactory = FuzzyParserFactory.instance(context);
     private final Options options = Options.instance(context);
@@ -71,11 +117,54 @@ public class JavacHolder {
     }
 
     private final Todo todo = Todo.instance(context);
+    private final CompileStates compileStates = CompileStates.instance(context);
     private final JavacTrees trees = JavacTrees.instance(context);
     // TreeScanner tasks we want to perform before or after compilation stages
     // We'll use these scanners to implement features like go-to-definition
     private final Map<TaskEvent.Kind, List<TreeScanner>> beforeTask = new HashMap<>(), afterTask = new HashMap<>();
     private final ClassIndex index = new ClassIndex(context);
+    private final DependencyGraph dependencies = new DependencyGraph(context);
+    // The text of files that are open in the editor, which may be ahead of the files on disk
+    private Function<Path, Optional<String>> openText = path -> Optional.empty();
+    // Told about each new version of a file we parse, so others can find out that it changed
+    private final List<BiConsumer<JCTree.JCCompilationUnit, HashCode>> parsedNew = new ArrayList<>();
+    // Saving the index of each jar on the class path, once the first compile has listed them
+    private Optional<Future<?>> jarsIndexed = Optional.empty();
+    // The last tree we parsed from each of the most recently used files, so we can skip compiling text we've already compiled
+    // Trees are big, so we forget the least recently used ones, along with javac's references to them, and compile them again if we need to
+    private final Map<URI, Parsed> parsed = new LinkedHashMap<URI, Parsed>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<URI, Parsed> eldest) {
+            if (size() <= MAX_PARSED)
+                return false;
+
+            release(eldest.getKey());
+
+            return true;
+        }
+    };
+
+    private static class Parsed {
+        public final HashCode hash;
+        public final JCTree.JCCompilationUnit tree;
+        public final List<Diagnostic<? extends JavaFileObject>> parseErrors;
+        // Empty until tree has been compiled
+        public Optional<List<Diagnostic<? extends JavaFileObject>>> compileErrors = Optional.empty();
+        public CompilePolicy compiledTo = CompilePolicy.ATTRIBUTE;
+        // The classes of tree that have been attributed but not flowed, so we can flow them later if we need to
+        // Once they're flowed we drop them; the declarations we answer goto from are in ClassIndex
+        public final List<Env<AttrContext>> attributed = new ArrayList<>();
+        // Bodies that compileAround emptied, which we can't answer questions about
+        public RangeSet<Long> pruned = TreeRangeSet.create();
+
+        private Parsed(HashCode hash, JCTree.JCCompilationUnit tree, List<Diagnostic<? extends JavaFileObject>> parseErrors) {
+            this.hash = hash;
+            this.tree = tree;
+            this.parseErrors = parseErrors;
+        }
+    }
+    // How long each phase takes, exposed by the stats request
+    public final CompileStats stats = new CompileStats(reader);
 
     public JavacHolder(List<Path> classPath, List<Path> sourcePath, Path outputDirectory) {
         this.classPath = classPath;
@@ -85,11 +174,19 @@ public class JavacHolder {
         options.put("-classpath", Joiner.on(":").join(classPath));
         options.put("-sourcepath", Joiner.on(":").join(sourcePath));
         options.put("-d", outputDirectory.toString());
+        // Class files in the output directory may be older than the source the user is editing,
+        // so whenever a class has both, read the source, like javac -Xprefer:source.
+        // ClassReader reads this option when it's created, which has already happened, so we set it ourselves.
+        options.put("-Xprefer", "source");
+        reader.preferSource = true;
 
+        indexJarsIn(outputDirectory.resolve(ZIP_INDEX));
+
+        MultiTaskListener.instance(context).add(stats);
         MultiTaskListener.instance(context).add(new TaskListener() {
             @Override
             public void started(TaskEvent e) {
-                LOG.info("started " + e);
+                LOG.info(() -> "started " + e);
 
                 JCTree.JCCompilationUnit unit = (JCTree.JCCompilationUnit) e.getCompilationUnit();
 
@@ -102,38 +199,72 @@ public class JavacHolder {
 
             @Override
             public void finished(TaskEvent e) {
-                LOG.info("finished " + e);
+                LOG.info(() -> "finished " + e);
 
                 JCTree.JCCompilationUnit unit = (JCTree.JCCompilationUnit) e.getCompilationUnit();
 
-                if (e.getKind() == TaskEvent.Kind.ANALYZE)
+                if (e.getKind() == TaskEvent.Kind.ANALYZE) {
                     unit.accept(index);
 
-                List<TreeScanner> todo = afterTask.getOrDefault(e.getKind(), Collections.emptyList());
-
-                for (TreeScanner visitor : todo) {
-                    unit.accept(visitor);
+                    // A pruned tree is missing the references in the bodies we emptied,
+                    // but we still need the rest, so the tree is forgotten when the files it refers to change
+                    if (isPruned(unit))
+                        dependencies.addReferences(unit);
+                    else
+                        unit.accept(dependencies);
                 }
+
+                runScanners(e.getKind(), unit);
             }
         });
 
-        clearOutputDirectory(outputDirectory);
     }
 
-    private static void clearOutputDirectory(Path file) {
+    /**
+     * Save javac's index of each jar on the class path in indexDirectory, so the next server doesn't have to list every jar again.
+     * javac checks each saved index against the modification time of its jar.
+     */
+    private void indexJarsIn(Path indexDirectory) {
         try {
-            if (file.getFileName().toString().endsWith(".class")) {
-                LOG.info("Invalidate " + file);
+            Files.createDirectories(indexDirectory);
 
-                Files.setLastModifiedTime(file, FileTime.from(Instant.EPOCH));
-            }
-            else if (Files.isDirectory(file))
-                Files.list(file).forEach(JavacHolder::clearOutputDirectory);
+            options.put("usezipindex", "true");
+            options.put("writezipindexfiles", "true");
+            options.put("cachezipindexdir", indexDirectory.toString());
         } catch (IOException e) {
-            LOG.log(Level.SEVERE, e.getMessage(), e);
+            LOG.log(Level.WARNING, "Couldn't create " + indexDirectory + ", jars won't be indexed", e);
         }
     }
 
+    /**
+     * javac only saves the index of a jar when it closes the jar, which may never happen if the server is killed,
+     * so after the first compile, which lists every jar on the class path, we save them ourselves on a background thread
+     */
+    private void saveJarIndexes() {
+        Set<File> jars = classPath.stream().map(jar -> jar.toAbsolutePath().toFile()).collect(Collectors.toSet());
+
+        jarsIndexed = Optional.of(jarIndexer.submit(() -> {
+            for (ZipFileIndex jar : ZipFileIndexCache.getSharedInstance().getZipFileIndexes()) {
+                if (jars.contains(jar.getZipFile().getAbsoluteFile()))
+                    jar.writeZipIndex();
+            }
+        }));
+    }
+
+    /**
+     * Saving the indexes of the jars on the class path, if the first compile has finished
+     */
+    Optional<Future<?>> jarsIndexed() {
+        return jarsIndexed;
+    }
+
+    /**
+     * Close the jar files and directories javac has open
+     */
+    public void close() {
+        fileManager.close();
+    }
+
     /**
      * After the parse phase of compilation,
      * scan the source trees with these scanners.
@@ -152,6 +283,35 @@ public class JavacHolder {
         afterTask.put(TaskEvent.Kind.ANALYZE, ImmutableList.copyOf(scan));
     }
 
+    /**
+     * When we check files again on our own, like the dependents of a changed file,
+     * read the text of the open ones from text instead of from disk, replacing any existing text source
+     */
+    public void openText(Function<Path, Optional<String>> text) {
+        openText = text;
+    }
+
+    /**
+     * Each time we parse text we haven't already got a tree for, tell callback the tree and the hash of the text,
+     * along with any existing callbacks
+     */
+    public void onParse(BiConsumer<JCTree.JCCompilationUnit, HashCode> callback) {
+        parsedNew.add(callback);
+    }
+
+    /**
+     * The current version of file, from the editor if it's open there, or from disk
+     */
+    private JavaFileObject current(URI file) {
+        Path path = Paths.get(file);
+        Optional<String> text = openText.apply(path);
+
+        if (text.isPresent())
+            return new StringFileObject(text.get(), path);
+        else
+            return fileManager.getRegularFile(path.toFile());
+    }
+
     /**
      * Send all errors to callback, replacing any existing callback
      */
@@ -162,67 +322,374 @@ public class JavacHolder {
     /**
      * Compile the indicated source file, and its dependencies if they have been modified.
      * Clears source from internal caches of javac, so that compile(parse(source)) will re-compile.
+     * If source has exactly the same text as the last time we parsed it, returns the same tree,
+     * and compile(parse(source)) reports the same errors without compiling again.
      */
     public JCTree.JCCompilationUnit parse(JavaFileObject source) {
+        return parse(source, cached -> cached.pruned.isEmpty());
+    }
+
+    private JCTree.JCCompilationUnit parse(JavaFileObject source, Predicate<Parsed> reusable) {
+        LOG.info(() -> command(source));
+
+        checkCancelled();
+
+        URI uri = source.toUri();
+        Optional<HashCode> hash = hash(source);
+        Parsed cached = parsed.get(uri);
+
+        if (cached != null && hash.isPresent() && cached.hash.equals(hash.get()) && reusable.test(cached)) {
+            LOG.info(() -> "Reuse tree of " + source.getName());
+
+            cached.parseErrors.forEach(errorsDelegate::report);
+            runScanners(TaskEvent.Kind.PARSE, cached.tree);
+
+            return cached.tree;
+        }
+
+        clear(source);
+
+        // Trees that refer to source point at symbols that are about to be replaced
+        parsed.remove(uri);
+
+        for (URI dependent : dependencies.dependents(uri))
+            forget(dependent);
+
+        recording = new ArrayList<>();
+
+        try {
+            JCTree.JCCompilationUnit result = compiler.parse(source);
+
+            if (hash.isPresent()) {
+                parsed.put(uri, new Parsed(hash.get(), result, recording));
+
+                for (BiConsumer<JCTree.JCCompilationUnit, HashCode> callback : parsedNew)
+                    callback.accept(result, hash.get());
+            }
+
+            return result;
+        } finally {
+            recording = null;
+        }
+    }
+
+    private static Optional<HashCode> hash(JavaFileObject source) {
+        try {
+            CharSequence content = source.getCharContent(true);
+
+            return Optional.of(Hashing.murmur3_128().hashString(content, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // compiler.parse will report the error
+            return Optional.empty();
+        }
+    }
+
+    private boolean isPruned(JCTree.JCCompilationUnit unit) {
+        Parsed cached = parsed.get(unit.getSourceFile().toUri());
+
+        return cached != null && cached.tree == unit && !cached.pruned.isEmpty();
+    }
+
+    private void runScanners(TaskEvent.Kind kind, JCTree.JCCompilationUnit unit) {
+        for (TreeScanner visitor : afterTask.getOrDefault(kind, Collections.emptyList()))
+            unit.accept(visitor);
+    }
+
+    /**
+     * The equivalent javac command, for debugging
+     */
+    private String command(JavaFileObject source) {
         StringJoiner command = new StringJoiner(" ");
-        
+
         command.add("javac");
-        
+
         for (String key : options.keySet()) {
             String value = options.get(key);
-            
+
             command.add(key);
             command.add(value);
         }
-        
+
         if (source instanceof SimpleJavaFileObject) {
             SimpleJavaFileObject simple = (SimpleJavaFileObject) source;
-            
+
             command.add(simple.toUri().getPath());
         }
-        
-        LOG.info(command.toString());
-        
-        clear(source);
 
-        JCTree.JCCompilationUnit result = compiler.parse(source);
+        return command.toString();
+    }
 
-        return result;
+    /**
+     * How far compile goes
+     */
+    public enum CompilePolicy {
+        /**
+         * Attribute types and symbols, which is all that autocomplete and goto need
+         */
+        ATTRIBUTE,
+        /**
+         * Also check flow, which finds errors like missing return statements and unassigned variables
+         */
+        FLOW
     }
 
     /**
      * Compile a source tree produced by this.parse
      */
     public void compile(JCTree.JCCompilationUnit source) {
-        compiler.processAnnotations(compiler.enterTrees(com.sun.tools.javac.util.List.of(source)));
+        compile(source, CompilePolicy.FLOW);
+    }
+
+    /**
+     * Compile a source tree produced by this.parse, stopping after policy.
+     * The after-analyze scanners run either way.
+     */
+    public void compile(JCTree.JCCompilationUnit source, CompilePolicy policy) {
+        Parsed cached = parsed.get(source.getSourceFile().toUri());
+        boolean reuse = cached != null && cached.tree == source;
+
+        if (reuse && cached.compileErrors.isPresent()) {
+            LOG.info(() -> "Reuse compiled " + source.getSourceFile().getName());
+
+            cached.compileErrors.get().forEach(errorsDelegate::report);
+
+            if (policy.compareTo(cached.compiledTo) > 0)
+                flowLater(cached);
+            else
+                runScanners(TaskEvent.Kind.ANALYZE, source);
+
+            return;
+        }
+
+        recording = new ArrayList<>();
+
+        try {
+            checkCancelled();
 
-        while (!todo.isEmpty()) {
-            // We don't do the desugar or generate phases, because they remove method bodies and methods
-            Env<AttrContext> next = todo.remove();
-            Env<AttrContext> attributedTree = compiler.attribute(next);
-            Queue<Env<AttrContext>> analyzedTree = compiler.flow(attributedTree);
+            compiler.processAnnotations(compiler.enterTrees(com.sun.tools.javac.util.List.of(source)));
+
+            while (!todo.isEmpty()) {
+                checkCancelled();
+
+                // We don't do the desugar or generate phases, because they remove method bodies and methods
+                Env<AttrContext> next = todo.remove();
+                Env<AttrContext> attributedTree = compiler.attribute(next);
+
+                if (reuse && policy == CompilePolicy.ATTRIBUTE && attributedTree.toplevel == source)
+                    cached.attributed.add(attributedTree);
+
+                checkCancelled();
+
+                if (policy == CompilePolicy.FLOW)
+                    compiler.flow(attributedTree);
+                else
+                    skipFlow(attributedTree);
+            }
+
+            if (!jarsIndexed.isPresent())
+                saveJarIndexes();
+
+            if (reuse) {
+                cached.compileErrors = Optional.of(recording);
+                cached.compiledTo = policy;
+            }
+        } catch (CancellationException e) {
+            // Don't leave half-finished work for the next compile
+            todo.clear();
+
+            throw e;
+        } finally {
+            // If we didn't finish, source has to be parsed and entered again next time
+            if (reuse && !cached.compileErrors.isPresent())
+                forget(source.getSourceFile().toUri());
+
+            recording = null;
         }
     }
 
+    /**
+     * Parse and compile just enough of source to answer a question about cursor, like autocomplete or goto.
+     * Method bodies and initializer blocks that don't contain cursor are emptied before source is entered,
+     * so they aren't attributed.
+     * Stops after attribution, like CompilePolicy.ATTRIBUTE.
+     */
+    public JCTree.JCCompilationUnit compileAround(JavaFileObject source, long cursor) {
+        JCTree.JCCompilationUnit tree = parse(source, cached -> !cached.pruned.contains(cursor));
+        Parsed cached = parsed.get(source.toUri());
+        boolean reuse = cached != null && cached.tree == tree;
+
+        if (!reuse || !cached.compileErrors.isPresent()) {
+            BodyPruner pruner = new BodyPruner(cursor, context);
+
+            tree.accept(pruner);
+
+            if (reuse)
+                cached.pruned = pruner.pruned;
+        }
+
+        compile(tree, CompilePolicy.ATTRIBUTE);
+
+        return tree;
+    }
+
+    /**
+     * compiler.flow signals the end of the ANALYZE phase, which triggers the after-analyze scanners,
+     * so when we don't flow we have to signal it ourselves
+     */
+    private void skipFlow(Env<AttrContext> attributedTree) {
+        TaskEvent e = new TaskEvent(TaskEvent.Kind.ANALYZE, attributedTree.toplevel, attributedTree.enclClass.sym);
+
+        MultiTaskListener.instance(context).finished(e);
+    }
+
+    /**
+     * Flow a tree we previously compiled with CompilePolicy.ATTRIBUTE,
+     * and add any new errors to the ones we replay
+     */
+    private void flowLater(Parsed cached) {
+        boolean hasErrors = cached.compileErrors.get().stream().anyMatch(error -> error.getKind() == Diagnostic.Kind.ERROR);
+
+        // javac doesn't flow classes after there are errors, so neither do we
+        if (hasErrors) {
+            runScanners(TaskEvent.Kind.ANALYZE, cached.tree);
+        }
+        else {
+            recording = cached.compileErrors.get();
+            log.nerrors = 0;
+
+            try {
+                for (Env<AttrContext> attributedTree : cached.attributed) {
+                    checkCancelled();
+
+                    compiler.flow(attributedTree);
+                }
+            } catch (RuntimeException e) {
+                // The recorded errors are incomplete, so start over next time
+                forget(cached.tree.getSourceFile().toUri());
+
+                throw e;
+            } finally {
+                recording = null;
+            }
+        }
+
+        cached.attributed.clear();
+        cached.compiledTo = CompilePolicy.FLOW;
+    }
+
+    /**
+     * Compile a source tree produced by this.parse,
+     * and if its API has changed, check the current version of the files that refer to it again.
+     * Errors in those files are reported to onError, the same as errors in source.
+     *
+     * @return The files that were checked again
+     */
+    public List<JavaFileObject> compileWithDependents(JCTree.JCCompilationUnit source) {
+        compile(source);
+
+        Deque<URI> changed = new ArrayDeque<>();
+        Set<URI> done = new HashSet<>();
+        List<JavaFileObject> recompiled = new ArrayList<>();
+
+        changed.add(source.getSourceFile().toUri());
+        done.add(source.getSourceFile().toUri());
+
+        while (!changed.isEmpty()) {
+            for (URI dependent : dependencies.changedDependents(changed.remove())) {
+                if (done.add(dependent)) {
+                    JavaFileObject file = current(dependent);
+
+                    LOG.info(() -> "Recompile dependent " + file.getName());
+
+                    compile(parse(file));
+
+                    changed.add(dependent);
+                    recompiled.add(file);
+                }
+            }
+        }
+
+        return recompiled;
+    }
+
+    /**
+     * Another compiler has parsed the version of file whose text has hash, or if hash is empty, has found that file was deleted.
+     * If we analyzed a different version, the classes it declared and the trees that refer to them are out of date,
+     * so we compile the current version of file, without reporting its errors or running any scanners.
+     */
+    public void changed(URI file, Optional<HashCode> hash) {
+        Parsed cached = parsed.get(file);
+
+        if (cached != null && hash.isPresent() && cached.hash.equals(hash.get()))
+            return;
+
+        if (!hash.isPresent()) {
+            if (index.deleted(file))
+                forget(file);
+
+            return;
+        }
+
+        if (cached == null && !index.analyzed(file))
+            return;
+
+        LOG.info(() -> "Catch up with " + file);
+
+        DiagnosticListener<JavaFileObject> delegate = errorsDelegate;
+        Map<TaskEvent.Kind, List<TreeScanner>> scanners = new HashMap<>(afterTask);
+
+        errorsDelegate = diagnostic -> {};
+        afterTask.clear();
+
+        try {
+            compile(parse(current(file)), CompilePolicy.ATTRIBUTE);
+        } finally {
+            errorsDelegate = delegate;
+            afterTask.putAll(scanners);
+        }
+    }
+
+    /**
+     * If the request we are working on has been cancelled, stop.
+     * We only check between phases, because stopping in the middle of a phase would leave javac in an inconsistent state.
+     */
+    private void checkCancelled() {
+        if (Thread.currentThread().isInterrupted())
+            throw new CancellationException("Compilation was cancelled");
+    }
+
     /**
      * Remove source file from caches in the parse stage
      */
     private void clear(JavaFileObject source) {
         // Forget about this file
-        log.clear(source);
+        release(source.toUri());
 
         // javac's flow stage will stop early if there are errors
         log.nerrors = 0;
         log.nwarnings = 0;
+    }
 
-        // Remove all cached classes that came from this files
-        List<Name> remove = new ArrayList<>();
+    /**
+     * Forget the tree we parsed from file, if we still have it
+     */
+    private void forget(URI file) {
+        parsed.remove(file);
 
-        check.compiled.forEach((name, symbol) -> {
-            if (symbol.sourcefile.getName().equals(source.getName()))
-                remove.add(name);
-        });
+        release(file);
+    }
+
+    /**
+     * javac holds on to the trees of every file it has compiled, through the classes they declared and the environments it attributed.
+     * Remove them, so the trees of file can be garbage-collected, and file will be entered again the next time we compile it.
+     * The declarations in ClassIndex are only positions, so we keep them.
+     */
+    private void release(URI file) {
+        for (Symbol.ClassSymbol declared : compiled.removeSource(file))
+            TypeEnvs.remove(context, declared);
+
+        compileStates.keySet().removeIf(env -> env.toplevel.sourcefile.toUri().equals(file));
 
-        remove.forEach(check.compiled::remove);
+        log.clear(file);
     }
 }
@@ -1,5 +1,6 @@
 package org.javacs;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -7,29 +8,41 @@ import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JSR310Module;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.javacs.message.Request;
+import org.javacs.message.RequestStats;
 import org.javacs.message.Response;
 import org.javacs.message.ResponseChannel;
 import org.javacs.message.ResponseError;
+import org.javacs.message.RequestLint;
+import org.javacs.message.ResponseLint;
+import org.javacs.message.ResponseStats;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintStream;
-import java.io.UncheckedIOException;
+import java.io.*;
 import java.net.Socket;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static java.util.stream.Collectors.toList;
 
 public class Main {
-    public static final ObjectMapper JSON = new ObjectMapper().registerModule(new Jdk8Module())
-                                                              .registerModule(new JSR310Module())
-                                                              .registerModule(pathAsJson())
-                                                              .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    public static final ObjectMapper JSON = withModules(new ObjectMapper());
+
+    /**
+     * Configure mapper to read and write our messages, whatever format it uses
+     */
+    static ObjectMapper withModules(ObjectMapper mapper) {
+        return mapper.registerModule(new Jdk8Module())
+                     .registerModule(new JSR310Module())
+                     .registerModule(pathAsJson())
+                     .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    }
 
     private static SimpleModule pathAsJson() {
         SimpleModule m = new SimpleModule();
@@ -59,7 +72,7 @@ public class Main {
                                                                       .registerModule(pathAsJson())
                                                                       .registerModule(truncateStrings())
                                                                       .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
-                                                                      .configure(SerializationFeature.WRITE_NULL_MAP_VALUES, false);
+                                                                      .setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
 
     private static SimpleModule truncateStrings() {
         SimpleModule m = new SimpleModule();
@@ -81,21 +94,43 @@ public class Main {
 
     private static final Logger LOG = Logger.getLogger("main");
 
+    /**
+     * Log the payload of 1 in every N requests and their responses, set with -Djavacs.logPayloadEvery=N.
+     * 0 means never log payloads.
+     */
+    private static final int LOG_PAYLOAD_EVERY = Integer.getInteger("javacs.logPayloadEvery", 1);
+
+    /**
+     * Stop logging a payload after this many characters
+     */
+    private static final int LOG_PAYLOAD_LIMIT = 1000;
+
     public static void main(String[] args) throws IOException {
         LoggingFormat.startLogging();
 
         Connection connection = connectToNode();
-        JsonParser parser = JSON.getFactory().createParser(connection.in);
-        MappingIterator<Request> requests = JSON.readValues(parser, Request.class);
 
-        ResponseChannel responses = response -> {
-            JSON.writeValue(connection.out, response);
+        if (SmileFraming.negotiate(connection.in)) {
+            LOG.info("Parent asked for Smile");
 
-            connection.out.print('\n');
+            connection.out.write(SmileFraming.HEADER);
             connection.out.flush();
-        };
 
-        new Main(requests, responses).run();
+            new Main(SmileFraming.requests(connection.in), SmileFraming.responses(connection.out)).run();
+        }
+        else {
+            JsonParser parser = JSON.getFactory().createParser(connection.in);
+            MappingIterator<Request> requests = JSON.readValues(parser, Request.class);
+
+            ResponseChannel responses = response -> {
+                JSON.writeValue(connection.out, response);
+
+                connection.out.print('\n');
+                connection.out.flush();
+            };
+
+            new Main(requests, responses).run();
+        }
     }
 
     private static Connection connectToNode() throws IOException {
@@ -122,16 +157,17 @@ public class Main {
     }
 
     private static class Connection {
-        final InputStream in;
+        final BufferedInputStream in;
         final PrintStream out;
 
         private Connection(InputStream in, PrintStream out) {
-            this.in = in;
+            // Buffered so we can peek at the first bytes to see what format the parent wants
+            this.in = new BufferedInputStream(in);
             this.out = out;
         }
     }
 
-    public Main(MappingIterator<Request> in, ResponseChannel out) {
+    public Main(Iterator<Request> in, ResponseChannel out) {
         this.in = in;
         this.out = out;
     }
@@ -139,16 +175,64 @@ public class Main {
     /**
      * Requests from the parent node process
      */
-    public final MappingIterator<Request> in;
+    public final Iterator<Request> in;
 
     /**
      * Where to send the responses
      */
     public final ResponseChannel out;
 
-    private final JavacHolder compiler = systemPropsCompiler();
+    /**
+     * Documents the editor has open.
+     * Only the reader thread changes these, so requests see exactly the edits that arrived before them.
+     */
+    private final DocumentStore documents = new DocumentStore();
+
+    private final Workspaces workspaces = new Workspaces(systemPropsWorkspace(), documents);
+
+    /**
+     * Runs requests on different threads than the one that reads them,
+     * so we can keep reading cancellations while a slow request is compiling.
+     * There is one thread for each compiler in a workspace, see Services#COMPILERS.
+     * Waiting requests are run in order of priority, see PendingRequest#compareTo.
+     */
+    private final ThreadPoolExecutor executor = newExecutor(Services.COMPILERS, "javac-%d");
+
+    /**
+     * Runs lint requests, which can use all but one of the compilers in a workspace,
+     * so autocomplete and goto never wait behind lint for a thread.
+     */
+    private final ThreadPoolExecutor lintExecutor = newExecutor(Math.max(1, Services.COMPILERS - 1), "javac-lint-%d");
+
+    private static ThreadPoolExecutor newExecutor(int threads, String nameFormat) {
+        return new ThreadPoolExecutor(threads, threads,
+                                      0, TimeUnit.MILLISECONDS,
+                                      new PriorityBlockingQueue<>(),
+                                      new ThreadFactoryBuilder().setNameFormat(nameFormat)
+                                                                .setDaemon(true)
+                                                                .build());
+    }
+
+    /**
+     * Breaks ties between requests of the same priority, so they run in the order they arrived
+     */
+    private final AtomicLong sequence = new AtomicLong();
 
-    private final Services services = new Services(compiler);
+    /**
+     * Requests that have been read but haven't responded yet, by request id
+     */
+    private final Map<Integer, PendingRequest> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Lint requests that haven't started yet, by workspace, path and options.
+     * When another lint of the same path with the same options arrives, it replaces the waiting one and answers for both.
+     */
+    private final Map<String, PendingRequest> waitingLints = new ConcurrentHashMap<>();
+
+    /**
+     * How long each type of request takes to run, by Request field name
+     */
+    private final Map<String, Histogram> latency = new ConcurrentHashMap<>();
 
     /**
      * Listen for requests from the parent node process.
@@ -157,10 +241,15 @@ public class Main {
      */
     public void run() throws IOException {
         try {
-            while (in.hasNextValue()) {
-                final Request request = in.nextValue();
-
-                handleRequest(request);
+            while (in.hasNext()) {
+                final Request request = in.next();
+
+                if (request.cancel.isPresent())
+                    cancel(request);
+                else if (isImmediate(request))
+                    send(handleRequest(request));
+                else
+                    submit(request);
             }
         } catch (Exception e) {
             LOG.log(Level.SEVERE, "Error reading request", e);
@@ -169,54 +258,483 @@ public class Main {
 
             response.error = Optional.of(new ResponseError(e.getMessage()));
 
-            out.next(response);
+            send(response);
+        } finally {
+            executor.shutdown();
+            lintExecutor.shutdown();
+
+            try {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                boolean finished = executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) &&
+                                   lintExecutor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+                if (!finished)
+                    LOG.warning("Gave up waiting for " + pending.size() + " outstanding requests");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
-    private void handleRequest(Request request) {
+    /**
+     * Requests that only update our state, which we apply right away, in the order they arrive
+     */
+    private static boolean isImmediate(Request request) {
+        return request.openWorkspace.isPresent() ||
+               request.didOpen.isPresent() ||
+               request.didChange.isPresent() ||
+               request.didClose.isPresent();
+    }
+
+    private void submit(Request request) {
+        try {
+            // Take the text of open documents now, before any later edits are applied
+            request.lint.ifPresent(documents::resolve);
+            request.autocomplete.ifPresent(documents::resolve);
+            request.requestGoto.ifPresent(documents::resolve);
+        } catch (ReturnError error) {
+            Response response = new Response(request.requestId);
+
+            response.error = Optional.of(new ResponseError(error.message));
+
+            send(response);
+
+            return;
+        }
+
+        PendingRequest task = new PendingRequest(request);
+
+        if (task.lintKey.isPresent())
+            coalesceLint(task.lintKey.get(), task);
+
+        pending.put(request.requestId, task);
+
+        if (task.lintKey.isPresent())
+            lintExecutor.execute(task);
+        else
+            executor.execute(task);
+    }
+
+    /**
+     * If a lint of the same path is still waiting, take it out of the queue,
+     * and answer its request(s) with the result of the new lint.
+     */
+    private void coalesceLint(String lintKey, PendingRequest task) {
+        PendingRequest waiting = waitingLints.put(lintKey, task);
+
+        // If remove fails, the waiting lint has already started and will respond on its own
+        if (waiting != null && lintExecutor.remove(waiting)) {
+            LOG.info(() -> "Lint " + task.requestId + " supersedes " + waiting.answers);
+
+            // The superseded requests can still be cancelled, through the task that answers for them now
+            for (int superseded : waiting.answers)
+                pending.put(superseded, task);
+
+            task.answers.addAll(waiting.answers);
+        }
+    }
+
+    /**
+     * Lints of the same path only answer for each other if they have the same options,
+     * so for example a lint without delta, which resyncs the client, always gets every message
+     */
+    private static String lintKey(Optional<String> workspace, RequestLint lint) {
+        return workspace.orElse("") + ":" + lint.path + (lint.stream ? ":stream" : "") + (lint.delta ? ":delta" : "") + (lint.push ? ":push" : "");
+    }
+
+    /**
+     * Cancel a pending request.
+     * If it hasn't started, it will never run.
+     * If it is compiling, compilation will stop at the next phase boundary.
+     * If a later lint answers for it, only the cancelled request stops waiting, and the later lint goes on.
+     * Either way, the cancelled request gets an error response right away.
+     */
+    private void cancel(Request request) {
+        int cancelId = request.cancel.get().requestId;
+        PendingRequest task = pending.get(cancelId);
+
+        if (task == null)
+            LOG.info(() -> "Request " + cancelId + " has already responded");
+        else if (task.requestId != cancelId)
+            task.stopAnswering(cancelId);
+        else
+            task.cancel(true);
+
+        send(new Response(request.requestId));
+    }
+
+    /**
+     * The order in which waiting requests are run.
+     * The user is waiting on autocomplete while they type, and on goto after they click,
+     * but nobody notices if lint is a little late.
+     */
+    enum Priority {
+        ECHO, AUTOCOMPLETE, GOTO, LINT;
+
+        static Priority of(Request request) {
+            if (request.autocomplete.isPresent())
+                return AUTOCOMPLETE;
+            else if (request.requestGoto.isPresent())
+                return GOTO;
+            else if (request.lint.isPresent())
+                return LINT;
+            else
+                return ECHO;
+        }
+    }
+
+    /**
+     * Sends exactly one response to each request it answers for when it finishes or is cancelled
+     */
+    private class PendingRequest extends FutureTask<Response> implements Comparable<PendingRequest> {
+        private final int requestId;
+        private final Optional<String> lintKey;
+        private final Priority priority;
+        private final long order = sequence.getAndIncrement();
+
+        /**
+         * This request, and any requests it has superseded.
+         * Only added to by the reader thread, before this is submitted.
+         * Guarded by itself, because cancel can take superseded requests out while this is running.
+         */
+        private final List<Integer> answers = new ArrayList<>();
+
+        /**
+         * Completes after every request this answers for has been sent its response,
+         * or fails if this was cancelled or a response couldn't be sent
+         */
+        private final CompletableFuture<Void> answered = new CompletableFuture<>();
+
+        private PendingRequest(Request request) {
+            super(() -> handleRequest(request));
+
+            this.requestId = request.requestId;
+            this.lintKey = request.lint.map(lint -> lintKey(request.workspace, lint));
+            this.priority = Priority.of(request);
+
+            answers.add(requestId);
+        }
+
+        @Override
+        public void run() {
+            // Once we've started, we can't absorb later lints of the same file
+            lintKey.ifPresent(key -> waitingLints.remove(key, this));
+
+            super.run();
+        }
+
+        @Override
+        public int compareTo(PendingRequest that) {
+            int byPriority = this.priority.compareTo(that.priority);
+
+            if (byPriority != 0)
+                return byPriority;
+            else
+                return Long.compare(this.order, that.order);
+        }
+
+        @Override
+        protected void done() {
+            Response result;
+
+            if (isCancelled()) {
+                lintKey.ifPresent(key -> waitingLints.remove(key, this));
+
+                result = new Response(requestId);
+                result.error = Optional.of(new ResponseError("Cancelled"));
+            }
+            else
+                result = Futures.getUnchecked(this);
+
+            try {
+                for (int answer : takeAnswers()) {
+                    pending.remove(answer);
+
+                    send(sameResult(answer, result));
+                }
+            } catch (RuntimeException e) {
+                answered.completeExceptionally(e);
+
+                throw e;
+            }
+
+            if (isCancelled())
+                answered.completeExceptionally(new CancellationException("Request " + requestId + " was cancelled"));
+            else
+                answered.complete(null);
+        }
+
+        /**
+         * The requests this answers for, which stop being cancellable on their own once we take them
+         */
+        private List<Integer> takeAnswers() {
+            synchronized (answers) {
+                List<Integer> result = new ArrayList<>(answers);
+
+                answers.clear();
+
+                return result;
+            }
+        }
+
+        private List<Integer> answers() {
+            synchronized (answers) {
+                return new ArrayList<>(answers);
+            }
+        }
+
+        /**
+         * Send a superseded request its cancelled response now, and leave it out of the response of this one
+         */
+        private void stopAnswering(int superseded) {
+            boolean removed;
+
+            synchronized (answers) {
+                removed = answers.remove((Integer) superseded);
+            }
+
+            // If it's not there, we're already sending it our response
+            if (removed) {
+                Response response = new Response(superseded);
+
+                response.error = Optional.of(new ResponseError("Cancelled"));
+
+                pending.remove(superseded, this);
+                send(response);
+            }
+        }
+    }
+
+    /**
+     * Copy of result, addressed to requestId
+     */
+    private static Response sameResult(int requestId, Response result) {
+        if (result.requestId.equals(OptionalInt.of(requestId)))
+            return result;
+
+        Response response = new Response(requestId);
+
+        response.echo = result.echo;
+        response.lint = result.lint;
+        response.autocomplete = result.autocomplete;
+        response.responseGoto = result.responseGoto;
+        response.error = result.error;
+        response.stats = result.stats;
+
+        return response;
+    }
+
+    private Response handleRequest(Request request) {
         Response response = new Response(request.requestId);
+        long start = System.nanoTime();
 
         try {
             // Put request id in logging context
             LoggingFormat.request.set(request.requestId);
 
-            LOG.info("request " + prettyPrint(request));
+            logPayload("request", request.requestId, request);
 
-            if (request.echo.isPresent())
-                response.echo = Optional.of(services.echo(request.echo.get()));
-            else if (request.lint.isPresent())
-                response.lint = Optional.of(services.lint(request.lint.get()));
+            if (request.openWorkspace.isPresent())
+                workspaces.open(request.openWorkspace.get());
+            else if (request.echo.isPresent())
+                response.echo = Optional.of(workspaces.get(request.workspace).echo(request.echo.get()));
+            else if (request.lint.isPresent()) {
+                CompletableFuture<Void> answered = answered(request.requestId);
+
+                response.lint = Optional.of(workspaces.get(request.workspace).lint(request.lint.get(),
+                                                                                   partial -> sendPartial(request.requestId, partial),
+                                                                                   pushed -> answered.whenComplete((ok, error) -> push(pushed)),
+                                                                                   answered));
+            }
             else if (request.autocomplete.isPresent())
-                response.autocomplete = Optional.of(services.autocomplete(request.autocomplete.get()));
+                response.autocomplete = Optional.of(workspaces.get(request.workspace).autocomplete(request.autocomplete.get()));
             else if (request.requestGoto.isPresent())
-                response.responseGoto = Optional.of(services.doGoto(request.requestGoto.get()));
+                response.responseGoto = Optional.of(workspaces.get(request.workspace).doGoto(request.requestGoto.get()));
+            else if (request.didOpen.isPresent())
+                documents.open(request.didOpen.get());
+            else if (request.didChange.isPresent())
+                documents.change(request.didChange.get());
+            else if (request.didClose.isPresent())
+                documents.close(request.didClose.get());
+            else if (request.stats.isPresent())
+                response.stats = Optional.of(stats(request.workspace, request.stats.get()));
                 // Continue the pattern for additional request / response types
             else
                 LOG.severe("Unrecognized message " + request);
         } catch (ReturnError error) {
             response.error = Optional.of(new ResponseError(error.message));
+        } catch (CancellationException e) {
+            // Whoever cancelled this request has already responded
+            LOG.info("Cancelled");
         } catch (Throwable e) {
             response.error = Optional.of(new ResponseError(e.getClass().getSimpleName() + ": " + e.getMessage()));
 
             LOG.log(Level.SEVERE, e.getMessage(), e);
         }
 
+        latency.computeIfAbsent(requestType(request), type -> new Histogram()).record(System.nanoTime() - start);
+
+        return response;
+    }
+
+    /**
+     * Send partial to every request that the lint requestId answers for, ahead of its complete response
+     */
+    private void sendPartial(int requestId, ResponseLint partial) {
+        PendingRequest task = pending.get(requestId);
+        List<Integer> answers = task == null ? Collections.singletonList(requestId) : task.answers();
+        Response response = new Response(requestId);
+
+        response.lint = Optional.of(partial);
+
+        for (int answer : answers)
+            send(sameResult(answer, response));
+    }
+
+    /**
+     * Completes once requestId has been answered, so we can send what follows from it, like pushed lint messages, after the answer
+     */
+    private CompletableFuture<Void> answered(int requestId) {
+        PendingRequest task = pending.get(requestId);
+
+        return task == null ? CompletableFuture.completedFuture(null) : task.answered;
+    }
+
+    /**
+     * Send lint messages that nobody asked for, in a response without a requestId
+     */
+    private void push(ResponseLint lint) {
+        Response response = new Response();
+
+        response.lint = Optional.of(lint);
+
+        send(response);
+    }
+
+    /**
+     * Name of the field that carries the arguments of request, for example "lint"
+     */
+    private static String requestType(Request request) {
+        if (request.openWorkspace.isPresent())
+            return "openWorkspace";
+        else if (request.echo.isPresent())
+            return "echo";
+        else if (request.lint.isPresent())
+            return "lint";
+        else if (request.autocomplete.isPresent())
+            return "autocomplete";
+        else if (request.requestGoto.isPresent())
+            return "goto";
+        else if (request.didOpen.isPresent())
+            return "didOpen";
+        else if (request.didChange.isPresent())
+            return "didChange";
+        else if (request.didClose.isPresent())
+            return "didClose";
+        else if (request.stats.isPresent())
+            return "stats";
+        else
+            return "unknown";
+    }
+
+    private ResponseStats stats(Optional<String> workspace, RequestStats request) {
+        ResponseStats response = workspaces.get(workspace).stats(request);
+
+        latency.forEach((type, histogram) -> response.requests.put(type, histogram.summarize()));
+
+        if (request.reset)
+            latency.clear();
+
+        return response;
+    }
+
+    /**
+     * Responses come from both the reader and the worker, so only let one of them write at a time
+     */
+    private void send(Response response) {
         try {
-            LOG.info("response " + prettyPrint(response));
+            logPayload("response", response.requestId.orElse(0), response);
 
-            out.next(response);
+            synchronized (out) {
+                out.next(response);
+            }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
-    private String prettyPrint(Object value) throws JsonProcessingException {
-        Map asMap = PRETTY_JSON.convertValue(value, Map.class);
+    /**
+     * Serializing a payload can cost as much as computing it, so don't do it unless it's going to be logged
+     */
+    private static void logPayload(String label, int requestId, Object value) {
+        if (LOG.isLoggable(Level.INFO) && sampled(requestId, LOG_PAYLOAD_EVERY))
+            LOG.info(label + " " + prettyPrint(value, LOG_PAYLOAD_LIMIT));
+    }
+
+    /**
+     * Is requestId one of the 1 in every requests whose payloads we log?
+     */
+    static boolean sampled(int requestId, int every) {
+        return every > 0 && requestId % every == 0;
+    }
 
-        return PRETTY_JSON.writeValueAsString(asMap);
+    /**
+     * value as JSON, cut off after limit characters
+     */
+    static String prettyPrint(Object value, int limit) {
+        TruncatingWriter out = new TruncatingWriter(limit);
+
+        try {
+            PRETTY_JSON.writeValue(out, value);
+        } catch (IOException e) {
+            if (!out.truncated)
+                LOG.log(Level.WARNING, "Error printing " + value.getClass().getSimpleName(), e);
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Aborts serialization once it has written limit characters
+     */
+    private static class TruncatingWriter extends Writer {
+        private final StringBuilder text = new StringBuilder();
+        private final int limit;
+        private boolean truncated = false;
+
+        private TruncatingWriter(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            int room = limit - text.length();
+
+            if (length > room) {
+                text.append(buffer, offset, room).append("...");
+                truncated = true;
+
+                throw new IOException("Payload is longer than " + limit + " characters");
+            }
+
+            text.append(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
     }
 
-    private JavacHolder systemPropsCompiler() {
+    private WorkspaceConfig systemPropsWorkspace() {
         String sourcePathString = System.getProperty("javacs.sourcePath");
         String classPathString = System.getProperty("javacs.classPath");
         String outputDirectoryString = System.getProperty("javacs.outputDirectory");
@@ -229,8 +747,8 @@ public class Main {
         List<Path> classPath = Arrays.stream(classPathString.split(":")).map(Paths::get).collect(toList());
         Path outputDirectory = Paths.get(outputDirectoryString);
 
-        return new JavacHolder(classPath,
-                               sourcePath,
-                               outputDirectory);
+        return new WorkspaceConfig(classPath,
+                                   sourcePath,
+                                   outputDirectory);
     }
 }
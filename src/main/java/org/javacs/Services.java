@@ -1,6 +1,8 @@
 package org.javacs;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.tools.javac.tree.JCTree;
 import org.javacs.message.*;
 
 import javax.tools.Diagnostic;
@@ -8,85 +10,413 @@ import javax.tools.DiagnosticCollector;
 import javax.tools.JavaFileObject;
 import java.io.*;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static java.util.stream.Collectors.toList;
 
 public class Services {
     private static final Logger LOG = Logger.getLogger("main");
-    private final JavacHolder compiler;
+
+    /**
+     * How many compilers each workspace has, set with -Djavacs.compilers=N
+     */
+    public static final int COMPILERS = Integer.getInteger("javacs.compilers", 2);
+
+    private final CompilerPool compilers;
+
+    /**
+     * Declarations in the source path, which we fill in the background, and update whenever a compiler parses a new version of a file
+     */
+    private final SymbolIndex index = new SymbolIndex();
+
+    /**
+     * Filling index in the background, until we're closed
+     */
+    private Optional<Future<?>> indexing = Optional.empty();
+
+    /**
+     * The lint messages we last sent for each file, by path, so we can send only what changed
+     */
+    private final Map<String, Set<LintMessage>> published = new HashMap<>();
+
+    /**
+     * Checks the dependents of linted files, one file at a time, on a low-priority thread
+     */
+    private final ExecutorService pusher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("push-%d")
+                                                                                                     .setDaemon(true)
+                                                                                                     .setPriority(Thread.MIN_PRIORITY)
+                                                                                                     .build());
+
+    /**
+     * Checks of dependents that haven't finished, by path of the file they depend on
+     */
+    private final Map<String, Future<?>> pushing = new ConcurrentHashMap<>();
 
     public Services(JavacHolder compiler) {
-        this.compiler = compiler;
+        this(Collections.singletonList(compiler));
+    }
+
+    public Services(List<JavacHolder> compilers) {
+        this.compilers = new CompilerPool(compilers);
+
+        for (JavacHolder compiler : compilers)
+            compiler.onParse((tree, hash) -> reindex(tree));
+    }
+
+    /**
+     * When the compilers check files on their own, like the dependents of a linted file,
+     * read the text of the files that are open in the editor from documents instead of from disk
+     */
+    public void openText(DocumentStore documents) {
+        for (JavacHolder compiler : compilers.all())
+            compiler.openText(path -> documents.get(path.toString()).map(document -> document.text));
+    }
+
+    /**
+     * Start indexing the declarations in sourcePath on background threads, saving the index in outputDirectory
+     */
+    public void indexInBackground(List<Path> sourcePath, Path outputDirectory) {
+        indexing = Optional.of(index.indexInBackground(sourcePath, outputDirectory));
+    }
+
+    /**
+     * Replace the declarations of tree's file in index, so goto finds them where they are now
+     */
+    private void reindex(JCTree.JCCompilationUnit tree) {
+        try {
+            index.index(tree);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error indexing " + tree.getSourceFile(), e);
+        }
+    }
+
+    /**
+     * Stop indexing, and release the compilers' open files once the requests that are using them finish.
+     * These services can't be used after this.
+     */
+    public void close() {
+        indexing.ifPresent(task -> task.cancel(true));
+        pusher.shutdownNow();
+        compilers.close();
     }
 
     public ResponseAutocomplete autocomplete(RequestAutocomplete request) throws IOException {
         Path path = Paths.get(request.path);
         DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
-        StringFileObject file = new StringFileObject(request.text, path);
-        LineMap lines = LineMap.fromString(request.text);
+        String text = text(request);
+        StringFileObject file = new StringFileObject(text, path);
+        LineMap lines = LineMap.fromString(text);
         long cursor = lines.offset(request.position.line, request.position.character);
-        AutocompleteVisitor autocompleter = new AutocompleteVisitor(file, cursor, compiler.context);
 
-        compiler.afterAnalyze(autocompleter);
-        compiler.onError(errors);
-        compiler.compile(compiler.parse(file));
+        try (CompilerPool.Lease lease = compilers.acquire(request.path, CompilerPool.Use.INTERACTIVE)) {
+            JavacHolder compiler = lease.compiler;
 
-        for (Diagnostic<? extends JavaFileObject> error : errors.getDiagnostics()) {
-            LOG.warning(error.toString());
-        }
+            AutocompleteVisitor autocompleter = new AutocompleteVisitor(file, cursor, compiler.context);
+
+            compiler.afterAnalyze(autocompleter);
+            compiler.onError(errors);
+            compiler.compileAround(file, cursor);
 
-        return new ResponseAutocomplete(autocompleter.suggestions);
+            for (Diagnostic<? extends JavaFileObject> error : errors.getDiagnostics()) {
+                LOG.warning(error.toString());
+            }
+
+            return new ResponseAutocomplete(autocompleter.suggestions);
+        }
     }
 
     public ResponseGoto doGoto(RequestGoto request) throws IOException {
         Path path = Paths.get(request.path);
         DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
-        StringFileObject file = new StringFileObject(request.text, path);
-        LineMap lines = LineMap.fromString(request.text);
+        String text = text(request);
+        StringFileObject file = new StringFileObject(text, path);
+        LineMap lines = LineMap.fromString(text);
         long cursor = lines.offset(request.position.line, request.position.character);
-        GotoDefinitionVisitor visitor = new GotoDefinitionVisitor(file, cursor, compiler.context);
-
-        compiler.afterAnalyze(visitor);
-        compiler.onError(errors);
-        compiler.compile(compiler.parse(file));
-
-        ResponseGoto response = new ResponseGoto();
-
-        for (SymbolLocation locate : visitor.definitions) {
-            URI uri = locate.file.toUri();
-            Path symbolPath = Paths.get(uri);
-            // If this is the currently open file, use text
-            // Otherwise use file on disk
-            LineMap symbolLineMap = path.equals(symbolPath) ? lines : LineMap.fromPath(symbolPath);
-            Position start = symbolLineMap.point(locate.startPosition);
-            Position end = symbolLineMap.point(locate.endPosition);
-            Range range = new Range(start, end);
-            Location location = new Location(uri, range);
-
-            response.definitions.add(location);
+
+        try (CompilerPool.Lease lease = compilers.acquire(request.path, CompilerPool.Use.INTERACTIVE)) {
+            JavacHolder compiler = lease.compiler;
+
+            GotoDefinitionVisitor visitor = new GotoDefinitionVisitor(file, cursor, compiler.context, index);
+
+            compiler.afterAnalyze(visitor);
+            compiler.onError(errors);
+            compiler.compileAround(file, cursor);
+
+            ResponseGoto response = new ResponseGoto();
+
+            for (SymbolLocation locate : visitor.definitions) {
+                URI uri = locate.file;
+                Path symbolPath = Paths.get(uri);
+                LineMap symbolLineMap;
+
+                // If this is the currently open file, use text
+                // Otherwise use file on disk
+                if (path.equals(symbolPath))
+                    symbolLineMap = lines;
+                else {
+                    try {
+                        symbolLineMap = LineMap.fromPath(symbolPath);
+                    } catch (NoSuchFileException e) {
+                        LOG.info(() -> uri + " has been deleted");
+
+                        deleted(compiler, uri);
+
+                        continue;
+                    }
+                }
+
+                Position start = symbolLineMap.point(locate.startPosition);
+                Position end = symbolLineMap.point(locate.endPosition);
+                Range range = new Range(start, end);
+                Location location = new Location(uri, range);
+
+                response.definitions.add(location);
+            }
+
+            return response;
         }
+    }
 
-        return response;
+    /**
+     * Forget the declarations that compiler found in file, because it has been deleted.
+     * The other compilers may be in use, so they forget it the next time they're leased.
+     */
+    private void deleted(JavacHolder compiler, URI file) {
+        if (compiler.context.get(ClassIndex.class).deleted(file))
+            compilers.changed(compiler, file, Optional.empty());
     }
 
     public JsonNode echo(JsonNode echo) {
         return echo;
     }
 
+    /**
+     * How long the compiler has spent in each phase, and what it has compiled
+     */
+    public ResponseStats stats(RequestStats request) {
+        ResponseStats response = new ResponseStats();
+
+        for (JavacHolder compiler : compilers.all()) {
+            compiler.stats.summarize(response);
+            response.classIndexSize += compiler.context.get(ClassIndex.class).size();
+
+            if (request.reset)
+                compiler.stats.reset();
+        }
+
+        response.indexedFiles = index.indexedFiles();
+        response.filesToIndex = index.filesToIndex();
+
+        return response;
+    }
+
+    /**
+     * Text of the file we want to compile, from the request if it has it, otherwise from disk
+     */
+    private static String text(JavacArgs request) throws IOException {
+        if (request.text != null)
+            return request.text;
+        else
+            return new String(Files.readAllBytes(Paths.get(request.path)));
+    }
+
     public ResponseLint lint(RequestLint request) throws IOException {
+        return lint(request, partial -> {}, pushed -> {}, CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Lint request.path, and any files that depend on it.
+     * If request.stream, send the syntax errors of request.path to partial right after it's parsed.
+     * If request.push, check the files that depend on it later, and send the ones whose messages changed to push.
+     * The messages in the response only become what the client is showing once answered completes, when the response has been sent.
+     * If answered fails, because the lint was cancelled or its response couldn't be sent, the next lint compares with what the client had before.
+     */
+    public ResponseLint lint(RequestLint request, Consumer<ResponseLint> partial, Consumer<ResponseLint> push, CompletionStage<Void> answered) throws IOException {
         DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
         Path path = Paths.get(request.path);
-        JavaFileObject file = compiler.fileManager.getRegularFile(path.toFile());
 
-        compiler.onError(errors);
-        compiler.compile(compiler.parse(file));
+        try (CompilerPool.Lease lease = compilers.acquire(request.path, CompilerPool.Use.BACKGROUND)) {
+            JavacHolder compiler = lease.compiler;
+
+            JavaFileObject file;
+
+            // If the file is open in the editor, lint what the user sees instead of what is on disk
+            if (request.text != null)
+                file = new StringFileObject(request.text, path);
+            else
+                file = compiler.fileManager.getRegularFile(path.toFile());
+
+            compiler.onError(errors);
+
+            JCTree.JCCompilationUnit tree = compiler.parse(file);
+
+            if (request.stream) {
+                ResponseLint syntax = new ResponseLint();
+
+                // If there are no syntax errors, leave the file out, so its old errors stay until we know the new ones
+                addMessages(syntax, errors.getDiagnostics());
+                // The final response replaces this one, so its delta is from the last final response, not from this one
+                compare(syntax, request.delta);
+                syntax.partial = true;
+
+                partial.accept(syntax);
+            }
+
+            List<JavaFileObject> dependents;
+
+            if (request.push) {
+                compiler.compile(tree);
+                pushDependents(request.path, file, push);
+
+                dependents = Collections.emptyList();
+            }
+            else
+                dependents = compiler.compileWithDependents(tree);
+
+            ResponseLint response = new ResponseLint();
+
+            // Files that no longer have errors need an empty list, so their old errors are cleared
+            response.messages.put(file.toUri().getPath(), new ArrayList<>());
+
+            for (JavaFileObject dependent : dependents)
+                response.messages.put(dependent.toUri().getPath(), new ArrayList<>());
+
+            addMessages(response, errors.getDiagnostics());
+
+            Map<String, Set<LintMessage>> sent = compare(response, request.delta);
+
+            answered.thenRun(() -> publish(sent));
+
+            return response;
+        }
+    }
+
+    /**
+     * Check the files that depend on file on a low-priority thread, and push the ones whose messages changed.
+     * If file is linted again before we start, we only check its dependents once.
+     */
+    private void pushDependents(String path, JavaFileObject file, Consumer<ResponseLint> push) {
+        FutureTask<?> task = new FutureTask<Void>(() -> {
+            try (CompilerPool.Lease lease = compilers.acquire(path, CompilerPool.Use.BACKGROUND)) {
+                JavacHolder compiler = lease.compiler;
+                DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
+
+                compiler.onError(errors);
+
+                // If this is the compiler that linted file, this reuses what it compiled
+                List<JavaFileObject> dependents = compiler.compileWithDependents(compiler.parse(file));
+                Set<URI> dependentUris = dependents.stream().map(JavaFileObject::toUri).collect(Collectors.toSet());
+                ResponseLint response = new ResponseLint();
+
+                for (JavaFileObject dependent : dependents)
+                    response.messages.put(dependent.toUri().getPath(), new ArrayList<>());
 
-        ResponseLint response = new ResponseLint();
+                addMessages(response, errors.getDiagnostics().stream()
+                                            .filter(error -> error.getSource() != null && dependentUris.contains(error.getSource().toUri()))
+                                            .collect(toList()));
 
-        for (Diagnostic<? extends JavaFileObject> error : errors.getDiagnostics()) {
+                if (publishChanged(response))
+                    push.accept(response);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Error checking dependents of " + path, e);
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                pushing.remove(path, this);
+            }
+        };
+
+        Future<?> last = pushing.put(path, task);
+
+        if (last != null)
+            last.cancel(false);
+
+        pusher.execute(task);
+    }
+
+    /**
+     * Leave out the files in response whose messages haven't changed since we last sent them, and remember the rest
+     *
+     * @return true if any files are left
+     */
+    private synchronized boolean publishChanged(ResponseLint response) {
+        response.messages.entrySet().removeIf(each -> {
+            Set<LintMessage> now = new LinkedHashSet<>(each.getValue());
+
+            return now.equals(published.getOrDefault(each.getKey(), Collections.emptySet()));
+        });
+
+        publish(compare(response, false));
+
+        return !response.messages.isEmpty();
+    }
+
+    /**
+     * Remember messages, by path, as what the client is showing.
+     * A client that loses track can always ask for a lint without delta, which has every message.
+     */
+    private synchronized void publish(Map<String, Set<LintMessage>> messages) {
+        messages.forEach((path, now) -> {
+            if (now.isEmpty())
+                published.remove(path);
+            else
+                published.put(path, now);
+        });
+    }
+
+    /**
+     * If delta, replace the messages in response with what was added and removed since the last response we published.
+     *
+     * @return The messages in response, by path, to publish once the client has them
+     */
+    private synchronized Map<String, Set<LintMessage>> compare(ResponseLint response, boolean delta) {
+        Map<String, Set<LintMessage>> messages = new HashMap<>();
+        Map<String, List<LintMessage>> added = new HashMap<>(), removed = new HashMap<>();
+
+        for (Map.Entry<String, List<LintMessage>> each : response.messages.entrySet()) {
+            String path = each.getKey();
+            Set<LintMessage> now = new LinkedHashSet<>(each.getValue());
+            Set<LintMessage> before = published.getOrDefault(path, Collections.emptySet());
+            List<LintMessage> add = now.stream().filter(message -> !before.contains(message)).collect(toList());
+            List<LintMessage> remove = before.stream().filter(message -> !now.contains(message)).collect(toList());
+
+            messages.put(path, now);
+
+            if (!add.isEmpty())
+                added.put(path, add);
+
+            if (!remove.isEmpty())
+                removed.put(path, remove);
+        }
+
+        if (delta) {
+            response.messages = new HashMap<>();
+            response.added = added;
+            response.removed = removed;
+            response.delta = true;
+        }
+
+        return messages;
+    }
+
+    private void addMessages(ResponseLint response, List<? extends Diagnostic<? extends JavaFileObject>> errors) {
+        for (Diagnostic<? extends JavaFileObject> error : errors) {
             Range range = position(error);
             String lintPath = error.getSource().toUri().getPath();
             LintMessage message = new LintMessage(range,
@@ -96,8 +426,6 @@ public class Services {
 
             ms.add(message);
         }
-
-        return response;
     }
 
     private Range position(Diagnostic<? extends JavaFileObject> error) {
@@ -0,0 +1,111 @@
+package org.javacs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.javacs.message.Request;
+import org.javacs.message.ResponseChannel;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact binary encoding of the messages between the parent process and Main.
+ * <p>
+ * By default, requests and responses are newline-delimited JSON.
+ * If the first thing the parent sends is the Smile header ":)\n",
+ * we reply with the same header, and from then on every message in both directions is
+ * a 4-byte big-endian length followed by that many bytes of Smile-encoded JSON.
+ * <p>
+ * {@see https://github.com/FasterXML/smile-format-specification}
+ */
+public class SmileFraming {
+    public static final byte[] HEADER = {':', ')', '\n'};
+
+    public static final ObjectMapper SMILE = Main.withModules(new ObjectMapper(new SmileFactory()));
+
+    /**
+     * If in starts with HEADER, consume it and return true.
+     * Otherwise, leave in untouched and return false.
+     * JSON never starts with ':', so we only block on more than one byte if the parent is asking for Smile.
+     */
+    public static boolean negotiate(BufferedInputStream in) throws IOException {
+        in.mark(HEADER.length);
+
+        if (in.read() != HEADER[0]) {
+            in.reset();
+
+            return false;
+        }
+
+        byte[] rest = new byte[HEADER.length - 1];
+
+        new DataInputStream(in).readFully(rest);
+
+        if (!Arrays.equals(rest, Arrays.copyOfRange(HEADER, 1, HEADER.length)))
+            throw new IOException("Expected Smile header but found " + Arrays.toString(rest));
+
+        return true;
+    }
+
+    /**
+     * Read length-prefixed Smile requests from in until it is closed
+     */
+    public static Iterator<Request> requests(InputStream in) {
+        DataInputStream data = new DataInputStream(in);
+
+        return new Iterator<Request>() {
+            private byte[] next;
+
+            @Override
+            public boolean hasNext() {
+                if (next != null)
+                    return true;
+
+                try {
+                    int length = data.readInt();
+
+                    next = new byte[length];
+
+                    data.readFully(next);
+
+                    return true;
+                } catch (EOFException e) {
+                    return false;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public Request next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                try {
+                    return SMILE.readValue(next, Request.class);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    next = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Write length-prefixed Smile responses to out
+     */
+    public static ResponseChannel responses(OutputStream out) {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+
+        return response -> {
+            byte[] bytes = SMILE.writeValueAsBytes(response);
+
+            data.writeInt(bytes.length);
+            data.write(bytes);
+            data.flush();
+        };
+    }
+}
@@ -0,0 +1,500 @@
+package org.javacs;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.util.JavacTask;
+import com.sun.tools.javac.api.JavacTool;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.TreeScanner;
+
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import java.io.*;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Where the classes, methods and fields of every source file in a workspace are declared,
+ * so we can go to a declaration in a file no compiler has looked at yet.
+ * <p>
+ * We fill the index in the background, by parsing every file on the source path.
+ * Parsing doesn't resolve any names, so declarations are identified by strings, see SymbolIndex#key.
+ * <p>
+ * When we're done, we save the index to the output directory, and the next time the workspace opens,
+ * we start from the saved index and only parse the files that have changed since.
+ */
+public class SymbolIndex {
+    private static final Logger LOG = Logger.getLogger("main");
+
+    /**
+     * How many files each indexing thread parses with one parser
+     */
+    private static final int BATCH_SIZE = 50;
+
+    /**
+     * Where we save the index, in the output directory
+     */
+    public static final String INDEX_FILE = "javacs-index.bin";
+
+    /**
+     * "JCSI", followed by VERSION, starts every saved index.
+     * Change VERSION whenever the format of the file, or what we index, changes.
+     */
+    private static final int MAGIC = 0x4A435349, VERSION = 2;
+
+    private final Map<String, SymbolLocation> declarations = new ConcurrentHashMap<>();
+
+    /**
+     * What we indexed from each file, so we can replace it when we index the file again
+     */
+    private final Map<URI, Indexed> byFile = new HashMap<>();
+
+    private static class Indexed {
+        /**
+         * When the file was last modified, and the hash of its contents, when we indexed it
+         */
+        final long modified, hash;
+        final Map<String, SymbolLocation> declared;
+
+        Indexed(long modified, long hash, Map<String, SymbolLocation> declared) {
+            this.modified = modified;
+            this.hash = hash;
+            this.declared = declared;
+        }
+    }
+
+    private final AtomicInteger indexedFiles = new AtomicInteger(), filesToIndex = new AtomicInteger();
+
+    /**
+     * Identifies symbol in a way we can also work out from a parse tree:
+     * flatname for classes, flatname#name for fields and flatname#name(ParamSimpleName,...) for methods and constructors.
+     * Local variables, and members of local and anonymous classes, don't have keys.
+     */
+    public static Optional<String> key(Symbol symbol) {
+        if (symbol instanceof Symbol.ClassSymbol)
+            return Optional.of(((Symbol.ClassSymbol) symbol).flatname.toString());
+
+        if (!(symbol.owner instanceof Symbol.ClassSymbol))
+            return Optional.empty();
+
+        String owner = ((Symbol.ClassSymbol) symbol.owner).flatname.toString();
+
+        if (symbol instanceof Symbol.MethodSymbol) {
+            StringJoiner params = new StringJoiner(",", "(", ")");
+
+            for (Type param : symbol.type.getParameterTypes())
+                params.add(simpleName(param));
+
+            return Optional.of(owner + "#" + symbol.name + params);
+        }
+        else if (symbol instanceof Symbol.VarSymbol)
+            return Optional.of(owner + "#" + symbol.name);
+        else
+            return Optional.empty();
+    }
+
+    private static String simpleName(Type type) {
+        if (type instanceof Type.ArrayType)
+            return simpleName(((Type.ArrayType) type).elemtype) + "[]";
+        else
+            return type.tsym.getSimpleName().toString();
+    }
+
+    /**
+     * The same as simpleName(Type), as well as we can tell from the source
+     */
+    private static String simpleName(JCTree type) {
+        if (type instanceof JCTree.JCArrayTypeTree)
+            return simpleName(((JCTree.JCArrayTypeTree) type).elemtype) + "[]";
+        else if (type instanceof JCTree.JCTypeApply)
+            return simpleName(((JCTree.JCTypeApply) type).clazz);
+        else if (type instanceof JCTree.JCAnnotatedType)
+            return simpleName(((JCTree.JCAnnotatedType) type).underlyingType);
+        else if (type instanceof JCTree.JCFieldAccess)
+            return ((JCTree.JCFieldAccess) type).name.toString();
+        else
+            return type.toString();
+    }
+
+    public Optional<SymbolLocation> locate(Symbol symbol) {
+        return key(symbol).map(declarations::get);
+    }
+
+    /**
+     * Parse every .java file under sourcePath on low-priority background threads, and index their declarations.
+     * We start from the index saved in outputDirectory, if there is one, and save the index there when we're done.
+     */
+    public Future<?> indexInBackground(List<Path> sourcePath, Path outputDirectory) {
+        ThreadFactory lowPriority = new ThreadFactoryBuilder().setNameFormat("index-%d")
+                                                              .setDaemon(true)
+                                                              .setPriority(Thread.MIN_PRIORITY)
+                                                              .build();
+        Path saved = outputDirectory.resolve(INDEX_FILE);
+        FutureTask<?> task = new FutureTask<>(() -> {
+            long start = System.nanoTime();
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            ExecutorService workers = Executors.newFixedThreadPool(threads, lowPriority);
+
+            load(saved);
+
+            List<Path> files = sourcePath.stream().flatMap(SymbolIndex::javaFiles).collect(toList());
+            List<Callable<Object>> batches = new ArrayList<>();
+
+            forgetAllExcept(files);
+            filesToIndex.addAndGet(files.size());
+
+            LOG.info(() -> "Indexing " + files.size() + " files on " + threads + " threads");
+
+            for (List<Path> batch : Lists.partition(files, BATCH_SIZE))
+                batches.add(Executors.callable(() -> indexBatch(batch)));
+
+            try {
+                workers.invokeAll(batches);
+
+                LOG.info(() -> "Indexed " + indexedFiles.get() + " files in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s");
+
+                save(saved);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                workers.shutdown();
+            }
+        }, null);
+
+        lowPriority.newThread(task).start();
+
+        return task;
+    }
+
+    private static Stream<Path> javaFiles(Path root) {
+        if (!Files.isDirectory(root))
+            return Stream.empty();
+
+        try {
+            return Files.walk(root).filter(file -> file.getFileName().toString().endsWith(".java"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The same URI the compiler uses for file
+     */
+    private static URI uri(Path file) {
+        return file.toFile().toURI().normalize();
+    }
+
+    /**
+     * Forget files we loaded from the saved index that aren't on the source path anymore
+     */
+    private void forgetAllExcept(List<Path> files) {
+        Set<URI> keep = files.stream().map(SymbolIndex::uri).collect(Collectors.toSet());
+
+        synchronized (byFile) {
+            Iterator<Map.Entry<URI, Indexed>> it = byFile.entrySet().iterator();
+
+            while (it.hasNext()) {
+                Map.Entry<URI, Indexed> next = it.next();
+
+                if (!keep.contains(next.getKey())) {
+                    // Only remove declarations that another file hasn't replaced
+                    next.getValue().declared.forEach(declarations::remove);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Is what we indexed from file still what's in it?
+     * If it has been modified, but its contents are the same, remember the new modification time.
+     */
+    private boolean upToDate(Path file) throws IOException {
+        URI uri = uri(file);
+        Indexed indexed;
+
+        synchronized (byFile) {
+            indexed = byFile.get(uri);
+        }
+
+        if (indexed == null)
+            return false;
+
+        long modified = file.toFile().lastModified();
+
+        if (modified == indexed.modified)
+            return true;
+
+        // Touched but not changed, for example by switching branches and back
+        if (hash(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)) != indexed.hash)
+            return false;
+
+        synchronized (byFile) {
+            byFile.replace(uri, indexed, new Indexed(modified, indexed.hash, indexed.declared));
+        }
+
+        return true;
+    }
+
+    private static long hash(CharSequence content) {
+        return Hashing.murmur3_128().hashString(content, StandardCharsets.UTF_8).asLong();
+    }
+
+    private void indexBatch(List<Path> batch) {
+        try {
+            List<File> changed = new ArrayList<>();
+
+            for (Path file : batch) {
+                if (!upToDate(file))
+                    changed.add(file.toFile());
+            }
+
+            if (!changed.isEmpty()) {
+                Map<URI, Indexed> before = new HashMap<>();
+
+                synchronized (byFile) {
+                    for (File file : changed)
+                        before.put(uri(file.toPath()), byFile.get(uri(file.toPath())));
+                }
+
+                JavacTool tool = JavacTool.create();
+                StandardJavaFileManager fileManager = tool.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+                Iterable<? extends JavaFileObject> files = fileManager.getJavaFileObjectsFromFiles(changed);
+                // Parse errors are the linter's problem
+                JavacTask task = tool.getTask(null, fileManager, diagnostic -> {}, Collections.singletonList("-proc:none"), null, files);
+
+                for (CompilationUnitTree tree : task.parse()) {
+                    URI file = tree.getSourceFile().toUri();
+                    Indexed indexed = scan((JCTree.JCCompilationUnit) tree);
+
+                    synchronized (byFile) {
+                        // A compiler may have indexed a newer version of file while we were parsing this one
+                        if (byFile.get(file) == before.get(file))
+                            put(file, indexed);
+                    }
+                }
+
+                fileManager.close();
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error indexing " + batch, e);
+        }
+
+        int done = indexedFiles.addAndGet(batch.size());
+
+        // Log about every 1000 files
+        if (done / 1000 != (done - batch.size()) / 1000)
+            LOG.info(() -> "Indexed " + done + " of " + filesToIndex.get() + " files");
+    }
+
+    /**
+     * Replace the declarations of tree's file with the declarations in tree
+     */
+    public void index(JCTree.JCCompilationUnit tree) throws IOException {
+        put(tree.getSourceFile().toUri(), scan(tree));
+    }
+
+    /**
+     * The declarations in tree
+     */
+    private Indexed scan(JCTree.JCCompilationUnit tree) throws IOException {
+        URI file = tree.getSourceFile().toUri();
+        long modified = tree.getSourceFile().getLastModified();
+        CharSequence content = tree.getSourceFile().getCharContent(true);
+        Map<String, SymbolLocation> found = new HashMap<>();
+
+        tree.accept(new TreeScanner() {
+            private String className = tree.getPackageName() == null ? "" : tree.getPackageName() + ".";
+
+            @Override
+            public void visitClassDef(JCTree.JCClassDecl tree) {
+                String outer = className;
+
+                className = className + tree.name;
+
+                int start = ClassIndex.nameOffset(content, tree);
+
+                if (start != -1)
+                    found.put(className, new SymbolLocation(file, start, start + tree.name.length()));
+
+                for (JCTree member : tree.defs)
+                    declare(member, tree);
+
+                className = outer;
+            }
+
+            private void declare(JCTree member, JCTree.JCClassDecl owner) {
+                if (member instanceof JCTree.JCClassDecl) {
+                    String outer = className;
+
+                    className = className + "$";
+                    member.accept(this);
+                    className = outer;
+                }
+                else if (member instanceof JCTree.JCMethodDecl) {
+                    JCTree.JCMethodDecl method = (JCTree.JCMethodDecl) member;
+                    StringJoiner params = new StringJoiner(",", "(", ")");
+
+                    for (JCTree.JCVariableDecl param : method.params)
+                        params.add(simpleName(param.vartype));
+
+                    // Constructors are named <init>, but their name in the source is the name of the class
+                    int length = method.name.contentEquals("<init>") ? owner.name.length() : method.name.length();
+
+                    found.put(className + "#" + method.name + params, new SymbolLocation(file, method.pos, method.pos + length));
+                }
+                else if (member instanceof JCTree.JCVariableDecl) {
+                    JCTree.JCVariableDecl field = (JCTree.JCVariableDecl) member;
+
+                    found.put(className + "#" + field.name, new SymbolLocation(file, field.pos, field.pos + field.name.length()));
+                }
+            }
+        });
+
+        return new Indexed(modified, hash(content), found);
+    }
+
+    private void put(URI file, Indexed indexed) {
+        synchronized (byFile) {
+            Indexed old = byFile.put(file, indexed);
+
+            // Only remove declarations that another file hasn't replaced
+            if (old != null)
+                old.declared.forEach(declarations::remove);
+
+            declarations.putAll(indexed.declared);
+        }
+    }
+
+    /**
+     * Load the index we saved to file, if there is one.
+     * We trust it until indexBatch checks each file again.
+     * We read it through a stream rather than mapping it, because Windows won't let save replace a file that's still mapped.
+     */
+    void load(Path file) {
+        if (!Files.exists(file))
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.info(() -> "Ignoring " + file + " which was saved by a different version");
+
+                return;
+            }
+
+            Map<URI, Indexed> loaded = new HashMap<>();
+
+            for (int files = in.readInt(); files > 0; files--) {
+                URI uri = URI.create(readString(in));
+                long modified = in.readLong(), hash = in.readLong();
+                Map<String, SymbolLocation> declared = new HashMap<>();
+
+                for (int n = in.readInt(); n > 0; n--) {
+                    String key = readString(in);
+                    int start = in.readInt(), end = in.readInt();
+
+                    declared.put(key, new SymbolLocation(uri, start, end));
+                }
+
+                loaded.put(uri, new Indexed(modified, hash, declared));
+            }
+
+            loaded.forEach(this::put);
+
+            LOG.info(() -> "Loaded " + loaded.size() + " files from " + file);
+        } catch (IOException | NegativeArraySizeException | IllegalArgumentException e) {
+            LOG.log(Level.WARNING, "Ignoring " + file + " which couldn't be read", e);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Save the index to file, so the next server to open this workspace can start from it
+     */
+    void save(Path file) {
+        Map<URI, Indexed> snapshot;
+
+        synchronized (byFile) {
+            snapshot = new HashMap<>(byFile);
+        }
+
+        try {
+            Files.createDirectories(file.getParent());
+
+            // Write somewhere else first, so a server that's starting never reads half a file
+            Path temp = Files.createTempFile(file.getParent(), INDEX_FILE, ".tmp");
+
+            try {
+                write(snapshot, temp);
+
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                // If we didn't get as far as the move, don't leave the temp file behind
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't save index to " + file, e);
+        }
+    }
+
+    private static void write(Map<URI, Indexed> snapshot, Path temp) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+
+            for (Map.Entry<URI, Indexed> each : snapshot.entrySet()) {
+                Indexed indexed = each.getValue();
+
+                writeString(out, each.getKey().toString());
+                out.writeLong(indexed.modified);
+                out.writeLong(indexed.hash);
+                out.writeInt(indexed.declared.size());
+
+                for (Map.Entry<String, SymbolLocation> declared : indexed.declared.entrySet()) {
+                    writeString(out, declared.getKey());
+                    out.writeInt((int) declared.getValue().startPosition);
+                    out.writeInt((int) declared.getValue().endPosition);
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public int indexedFiles() {
+        return indexedFiles.get();
+    }
+
+    public int filesToIndex() {
+        return filesToIndex.get();
+    }
+}
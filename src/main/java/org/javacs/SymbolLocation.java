@@ -1,14 +1,35 @@
 package org.javacs;
 
-import javax.tools.JavaFileObject;
+import java.net.URI;
+import java.util.Objects;
 
 public class SymbolLocation {
-    public final JavaFileObject file;
+    public final URI file;
     public final long startPosition, endPosition;
 
-    public SymbolLocation(JavaFileObject file, long startPosition, long endPosition) {
+    public SymbolLocation(URI file, long startPosition, long endPosition) {
         this.file = file;
         this.startPosition = startPosition;
         this.endPosition = endPosition;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SymbolLocation that = (SymbolLocation) o;
+        return startPosition == that.startPosition &&
+               endPosition == that.endPosition &&
+               Objects.equals(file, that.file);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(file, startPosition, endPosition);
+    }
+
+    @Override
+    public String toString() {
+        return file + ":" + startPosition + "-" + endPosition;
+    }
 }
@@ -0,0 +1,56 @@
+package org.javacs;
+
+import org.javacs.message.RequestOpenWorkspace;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Objects;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Everything we need to create a JavacHolder.
+ * Workspaces with the same configuration share a compiler.
+ */
+public class WorkspaceConfig {
+    public final List<Path> classPath;
+    public final List<Path> sourcePath;
+    public final Path outputDirectory;
+
+    public WorkspaceConfig(List<Path> classPath, List<Path> sourcePath, Path outputDirectory) {
+        this.classPath = classPath;
+        this.sourcePath = sourcePath;
+        this.outputDirectory = outputDirectory;
+    }
+
+    public static WorkspaceConfig of(RequestOpenWorkspace request) {
+        return new WorkspaceConfig(request.classPath.stream().map(Paths::get).collect(toList()),
+                                   request.sourcePath.stream().map(Paths::get).collect(toList()),
+                                   Paths.get(request.outputDirectory));
+    }
+
+    public JavacHolder newCompiler() {
+        return new JavacHolder(classPath, sourcePath, outputDirectory);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        WorkspaceConfig that = (WorkspaceConfig) o;
+        return Objects.equals(classPath, that.classPath) &&
+               Objects.equals(sourcePath, that.sourcePath) &&
+               Objects.equals(outputDirectory, that.outputDirectory);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classPath, sourcePath, outputDirectory);
+    }
+
+    @Override
+    public String toString() {
+        return "sourcePath=" + sourcePath + " classPath=" + classPath + " outputDirectory=" + outputDirectory;
+    }
+}
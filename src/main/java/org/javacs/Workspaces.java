@@ -0,0 +1,147 @@
+package org.javacs;
+
+import org.javacs.message.RequestOpenWorkspace;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * All the compilers hosted by this process.
+ * There is one compiler for each distinct combination of source path, class path and output directory,
+ * so opening many modules doesn't mean starting many processes.
+ * <p>
+ * Compilers are big, so we only keep the most recently used few.
+ * All compilers share javac's cache of jar file indexes (ZipFileIndexCache),
+ * so the JDK and jars that are on several class paths are only indexed once.
+ */
+public class Workspaces {
+    private static final Logger LOG = Logger.getLogger("main");
+
+    /**
+     * How many compilers to keep, besides the default one, set with -Djavacs.maxWorkspaces=N
+     */
+    private static final int MAX_WORKSPACES = Integer.getInteger("javacs.maxWorkspaces", 4);
+
+    /**
+     * The workspace configured on the command line, which is never evicted
+     */
+    private final Services defaultWorkspace;
+
+    /**
+     * Documents the editor has open, which the compilers read instead of the files on disk
+     */
+    private final DocumentStore documents;
+
+    private final Map<String, WorkspaceConfig> configs = new ConcurrentHashMap<>();
+
+    /**
+     * Compilers we've created, or are still creating, least recently used first
+     */
+    private final Map<WorkspaceConfig, CompletableFuture<Services>> compilers = new LinkedHashMap<WorkspaceConfig, CompletableFuture<Services>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<WorkspaceConfig, CompletableFuture<Services>> eldest) {
+            if (size() <= MAX_WORKSPACES)
+                return false;
+
+            LOG.info(() -> "Evicting workspace " + eldest.getKey());
+
+            eldest.getValue().thenAccept(Services::close);
+
+            return true;
+        }
+    };
+
+    public Workspaces(WorkspaceConfig defaultConfig, DocumentStore documents) {
+        this.documents = documents;
+        this.defaultWorkspace = newServices(defaultConfig);
+    }
+
+    /**
+     * Remember the configuration of a workspace.
+     * We don't create the compiler until it is used.
+     */
+    public void open(RequestOpenWorkspace request) {
+        configs.put(request.id, WorkspaceConfig.of(request));
+    }
+
+    /**
+     * Services for workspace id, or for the default workspace if id is empty.
+     * Creating the compilers of a workspace is slow, so we do it outside the lock,
+     * and only requests for the same workspace wait for it.
+     */
+    public Services get(Optional<String> id) {
+        if (!id.isPresent())
+            return defaultWorkspace;
+
+        WorkspaceConfig config = configs.get(id.get());
+
+        if (config == null)
+            throw new ReturnError("Workspace " + id.get() + " has not been opened", null);
+
+        CompletableFuture<Services> services;
+        boolean create;
+
+        synchronized (this) {
+            services = compilers.get(config);
+            create = services == null;
+
+            if (create) {
+                services = new CompletableFuture<>();
+
+                compilers.put(config, services);
+            }
+        }
+
+        if (create) {
+            LOG.info(() -> "Creating workspace " + config);
+
+            try {
+                services.complete(newServices(config));
+            } catch (RuntimeException | Error e) {
+                // The next request tries again
+                synchronized (this) {
+                    compilers.remove(config, services);
+                }
+
+                services.completeExceptionally(e);
+
+                throw e;
+            }
+        }
+
+        try {
+            return services.join();
+        } catch (CompletionException e) {
+            // Requests that waited for another to create the compilers fail the same way it did
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            else
+                throw e;
+        }
+    }
+
+    /**
+     * Services with a pool of warm compilers for config, which starts indexing the source path right away
+     */
+    private Services newServices(WorkspaceConfig config) {
+        List<JavacHolder> compilers = new ArrayList<>();
+
+        for (int i = 0; i < Services.COMPILERS; i++)
+            compilers.add(config.newCompiler());
+
+        Services services = new Services(compilers);
+
+        services.openText(documents);
+
+        services.indexInBackground(config.sourcePath, config.outputDirectory);
+
+        return services;
+    }
+}
@@ -1,9 +1,8 @@
 package org.javacs.message;
 
 import com.fasterxml.jackson.annotation.JsonValue;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import org.javacs.Main;
 
+import java.util.Objects;
 import java.util.Optional;
 
 /**
@@ -93,12 +92,27 @@ public class AutocompleteSuggestion {
         }
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        AutocompleteSuggestion that = (AutocompleteSuggestion) o;
+        return Objects.equals(label, that.label) &&
+               Objects.equals(insertText, that.insertText) &&
+               kind == that.kind &&
+               Objects.equals(detail, that.detail) &&
+               Objects.equals(documentation, that.documentation) &&
+               Objects.equals(sortText, that.sortText) &&
+               Objects.equals(filterText, that.filterText);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(label, insertText, kind, detail, documentation, sortText, filterText);
+    }
+
     @Override
     public String toString() {
-        try {
-            return Main.JSON.writeValueAsString(this);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
-        }
+        return kind + " " + label;
     }
 }
@@ -0,0 +1,35 @@
+package org.javacs.message;
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Replace a range of a document with new text
+ */
+public class DocumentChange {
+
+    /**
+     * The range of the document to replace, in the document as it was before this change.
+     * If empty, text replaces the entire document.
+     */
+    public Optional<Range> range = Optional.empty();
+
+    /**
+     * The new text of the range
+     */
+    public String text;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DocumentChange that = (DocumentChange) o;
+        return Objects.equals(range, that.range) &&
+               Objects.equals(text, that.text);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(range, text);
+    }
+}
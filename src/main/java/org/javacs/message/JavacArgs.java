@@ -2,12 +2,14 @@ package org.javacs.message;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 public class JavacArgs {
 
     /**
-     * Source of the file we want to compile
+     * Source of the file we want to compile.
+     * If absent, we'll use the open document at path, or the file on disk.
      */
     public String text;
 
@@ -15,4 +17,24 @@ public class JavacArgs {
      * Path to a file we want to compile. But we'll use content for the actual source code.
      */
     public String path;
+
+    /**
+     * If text is absent and path is an open document, the version of the document we expect.
+     */
+    public Optional<Integer> version = Optional.empty();
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        JavacArgs that = (JavacArgs) o;
+        return Objects.equals(text, that.text) &&
+               Objects.equals(path, that.path) &&
+               Objects.equals(version, that.version);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(text, path, version);
+    }
 }
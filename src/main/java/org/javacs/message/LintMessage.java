@@ -2,6 +2,7 @@ package org.javacs.message;
 
 import com.fasterxml.jackson.annotation.JsonValue;
 
+import java.util.Objects;
 import java.util.Optional;
 
 public class LintMessage {
@@ -44,4 +45,20 @@ public class LintMessage {
             return this.ordinal();
         }
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LintMessage that = (LintMessage) o;
+        return Objects.equals(range, that.range) &&
+               Objects.equals(message, that.message) &&
+               Objects.equals(source, that.source) &&
+               Objects.equals(severity, that.severity);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(range, message, source, severity);
+    }
 }
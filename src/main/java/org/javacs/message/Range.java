@@ -1,5 +1,8 @@
 package org.javacs.message;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 import java.util.Objects;
 
 public class Range {
@@ -14,7 +17,8 @@ public class Range {
      */
     public final Position end;
 
-    public Range(Position start, Position end) {
+    @JsonCreator
+    public Range(@JsonProperty("start") Position start, @JsonProperty("end") Position end) {
         this.start = start;
         this.end = end;
     }
@@ -5,11 +5,18 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import org.javacs.Main;
 
+import java.util.Objects;
 import java.util.Optional;
 
 public class Request {
     public int requestId;
 
+    /**
+     * Which workspace to compile in, from an earlier openWorkspace.
+     * If empty, use the workspace configured on the command line.
+     */
+    public Optional<String> workspace = Optional.empty();
+
     /**
      * Handy to test if the channel is working
      */
@@ -22,26 +29,46 @@ public class Request {
     @JsonProperty("goto")
     public Optional<RequestGoto> requestGoto = Optional.empty();
 
+    public Optional<RequestOpenWorkspace> openWorkspace = Optional.empty();
+
+    public Optional<RequestDidOpen> didOpen = Optional.empty();
+
+    public Optional<RequestDidChange> didChange = Optional.empty();
+
+    public Optional<RequestDidClose> didClose = Optional.empty();
+
+    /**
+     * Timing and counters of the compiler and the requests it has answered
+     */
+    public Optional<RequestStats> stats = Optional.empty();
+
+    /**
+     * Abandon an earlier request that hasn't responded yet
+     */
+    public Optional<RequestIdOnly> cancel = Optional.empty();
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
-        Request response = (Request) o;
-
-        try {
-            return Main.JSON.writeValueAsString(this).equals(Main.JSON.writeValueAsString(response));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
-        }
+        Request request = (Request) o;
+        return requestId == request.requestId &&
+               Objects.equals(workspace, request.workspace) &&
+               Objects.equals(echo, request.echo) &&
+               Objects.equals(lint, request.lint) &&
+               Objects.equals(autocomplete, request.autocomplete) &&
+               Objects.equals(requestGoto, request.requestGoto) &&
+               Objects.equals(openWorkspace, request.openWorkspace) &&
+               Objects.equals(didOpen, request.didOpen) &&
+               Objects.equals(didChange, request.didChange) &&
+               Objects.equals(didClose, request.didClose) &&
+               Objects.equals(stats, request.stats) &&
+               Objects.equals(cancel, request.cancel);
     }
 
     @Override
     public int hashCode() {
-        try {
-            return Main.JSON.writeValueAsString(this).hashCode();
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
-        }
+        return Objects.hash(requestId, workspace, echo, lint, autocomplete, requestGoto, openWorkspace, didOpen, didChange, didClose, stats, cancel);
     }
 
     @Override
@@ -1,9 +1,25 @@
 package org.javacs.message;
 
+import java.util.Objects;
+
 public class RequestAutocomplete extends JavacArgs {
 
     /**
      * Autocomplete symbols here
      */
     public Position position = new Position();
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        if (!super.equals(o)) return false;
+        RequestAutocomplete that = (RequestAutocomplete) o;
+        return Objects.equals(position, that.position);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), position);
+    }
 }
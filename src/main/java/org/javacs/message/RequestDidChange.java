@@ -0,0 +1,37 @@
+package org.javacs.message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The editor has changed a document it previously opened
+ */
+public class RequestDidChange {
+    public String path;
+
+    /**
+     * Version of the document after all changes have been applied
+     */
+    public int version;
+
+    /**
+     * Edits to apply, in order
+     */
+    public List<DocumentChange> changes = new ArrayList<>();
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RequestDidChange that = (RequestDidChange) o;
+        return Objects.equals(path, that.path) &&
+               version == that.version &&
+               Objects.equals(changes, that.changes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(path, version, changes);
+    }
+}
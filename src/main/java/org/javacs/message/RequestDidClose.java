@@ -0,0 +1,23 @@
+package org.javacs.message;
+
+import java.util.Objects;
+
+/**
+ * The editor has closed a document, so the file on disk is the source of truth again
+ */
+public class RequestDidClose {
+    public String path;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RequestDidClose that = (RequestDidClose) o;
+        return Objects.equals(path, that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(path);
+    }
+}
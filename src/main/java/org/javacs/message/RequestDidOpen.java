@@ -0,0 +1,35 @@
+package org.javacs.message;
+
+import java.util.Objects;
+
+/**
+ * The editor has opened a document, and will send changes to it from now on
+ */
+public class RequestDidOpen {
+    public String path;
+
+    /**
+     * Increases with every change to the document
+     */
+    public int version;
+
+    /**
+     * Full text of the document
+     */
+    public String text;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RequestDidOpen that = (RequestDidOpen) o;
+        return Objects.equals(path, that.path) &&
+               version == that.version &&
+               Objects.equals(text, that.text);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(path, version, text);
+    }
+}
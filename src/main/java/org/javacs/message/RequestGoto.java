@@ -1,5 +1,21 @@
 package org.javacs.message;
 
+import java.util.Objects;
+
 public class RequestGoto extends JavacArgs {
     public Position position = new Position();
-}
\ No newline at end of file
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        if (!super.equals(o)) return false;
+        RequestGoto that = (RequestGoto) o;
+        return Objects.equals(position, that.position);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), position);
+    }
+}
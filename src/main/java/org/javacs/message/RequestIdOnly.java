@@ -1,5 +1,20 @@
 package org.javacs.message;
 
+import java.util.Objects;
+
 public class RequestIdOnly {
     public int requestId;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RequestIdOnly that = (RequestIdOnly) o;
+        return requestId == that.requestId;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(requestId);
+    }
 }
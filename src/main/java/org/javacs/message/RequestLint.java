@@ -1,4 +1,38 @@
 package org.javacs.message;
 
+import java.util.Objects;
+
 public class RequestLint extends JavacArgs {
+    /**
+     * Send the syntax errors of path as soon as it's parsed, in a partial ResponseLint,
+     * before the complete ResponseLint with the same requestId
+     */
+    public boolean stream;
+
+    /**
+     * Respond with the messages that were added and removed since the last lint response, instead of every message
+     */
+    public boolean delta;
+
+    /**
+     * Check the files that depend on path in the background, after responding,
+     * and push their messages in responses without a requestId, instead of including them in this response
+     */
+    public boolean push;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        if (!super.equals(o)) return false;
+        RequestLint that = (RequestLint) o;
+        return stream == that.stream &&
+               delta == that.delta &&
+               push == that.push;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), stream, delta, push);
+    }
 }
@@ -0,0 +1,39 @@
+package org.javacs.message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Configure a workspace.
+ * Later requests that name this workspace will be compiled with these options.
+ */
+public class RequestOpenWorkspace {
+
+    /**
+     * Chosen by the parent process, used as Request#workspace in later requests
+     */
+    public String id;
+
+    public List<String> sourcePath = new ArrayList<>();
+
+    public List<String> classPath = new ArrayList<>();
+
+    public String outputDirectory;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RequestOpenWorkspace that = (RequestOpenWorkspace) o;
+        return Objects.equals(id, that.id) &&
+               Objects.equals(sourcePath, that.sourcePath) &&
+               Objects.equals(classPath, that.classPath) &&
+               Objects.equals(outputDirectory, that.outputDirectory);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, sourcePath, classPath, outputDirectory);
+    }
+}
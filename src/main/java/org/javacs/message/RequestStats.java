@@ -0,0 +1,23 @@
+package org.javacs.message;
+
+import java.util.Objects;
+
+public class RequestStats {
+    /**
+     * Start counting again from zero after responding
+     */
+    public boolean reset = false;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RequestStats that = (RequestStats) o;
+        return reset == that.reset;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(reset);
+    }
+}
@@ -5,6 +5,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import org.javacs.Main;
 
+import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalInt;
 
@@ -16,6 +17,7 @@ public class Response {
     public Optional<ResponseAutocomplete> autocomplete = Optional.empty();
     @JsonProperty("goto")
     public Optional<ResponseGoto> responseGoto = Optional.empty();
+    public Optional<ResponseStats> stats = Optional.empty();
 
     public Response(int requestId) {
         this.requestId = OptionalInt.of(requestId);
@@ -30,21 +32,18 @@ public class Response {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Response response = (Response) o;
-
-        try {
-            return Main.JSON.writeValueAsString(this).equals(Main.JSON.writeValueAsString(response));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
-        }
+        return Objects.equals(requestId, response.requestId) &&
+               Objects.equals(lint, response.lint) &&
+               Objects.equals(echo, response.echo) &&
+               Objects.equals(error, response.error) &&
+               Objects.equals(autocomplete, response.autocomplete) &&
+               Objects.equals(responseGoto, response.responseGoto) &&
+               Objects.equals(stats, response.stats);
     }
 
     @Override
     public int hashCode() {
-        try {
-            return Main.JSON.writeValueAsString(this).hashCode();
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
-        }
+        return Objects.hash(requestId, lint, echo, error, autocomplete, responseGoto, stats);
     }
 
     @Override
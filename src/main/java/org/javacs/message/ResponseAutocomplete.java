@@ -1,5 +1,6 @@
 package org.javacs.message;
 
+import java.util.Objects;
 import java.util.Set;
 
 public class ResponseAutocomplete {
@@ -8,4 +9,17 @@ public class ResponseAutocomplete {
     public ResponseAutocomplete(Set<AutocompleteSuggestion> suggestions) {
         this.suggestions = suggestions;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ResponseAutocomplete that = (ResponseAutocomplete) o;
+        return Objects.equals(suggestions, that.suggestions);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(suggestions);
+    }
 }
@@ -1,9 +1,24 @@
 package org.javacs.message;
 
+import java.util.Objects;
+
 public class ResponseError {
     public final String message;
 
     public ResponseError(String message) {
         this.message = message;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ResponseError that = (ResponseError) o;
+        return Objects.equals(message, that.message);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(message);
+    }
 }
@@ -5,4 +5,16 @@ import java.util.*;
 public class ResponseGoto {
     public final Set<Location> definitions = new HashSet<>();
 
-}
\ No newline at end of file
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ResponseGoto that = (ResponseGoto) o;
+        return Objects.equals(definitions, that.definitions);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(definitions);
+    }
+}
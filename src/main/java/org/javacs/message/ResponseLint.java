@@ -3,7 +3,38 @@ package org.javacs.message;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public class ResponseLint {
     public Map<String, List<LintMessage>> messages = new HashMap<>();
+
+    /**
+     * More responses to the same request are coming.
+     * The last response, which is never partial, has every message, so it replaces the partial ones.
+     */
+    public boolean partial;
+
+    /**
+     * Instead of messages, added and removed have the changes since the last lint response that wasn't partial, by path.
+     * Files whose messages didn't change are left out.
+     */
+    public boolean delta;
+    public Map<String, List<LintMessage>> added = new HashMap<>(), removed = new HashMap<>();
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ResponseLint that = (ResponseLint) o;
+        return partial == that.partial &&
+               delta == that.delta &&
+               Objects.equals(messages, that.messages) &&
+               Objects.equals(added, that.added) &&
+               Objects.equals(removed, that.removed);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(messages, partial, delta, added, removed);
+    }
 }
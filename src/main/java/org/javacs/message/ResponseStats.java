@@ -0,0 +1,56 @@
+package org.javacs.message;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+public class ResponseStats {
+    /**
+     * Time spent in each phase of javac, by TaskEvent.Kind
+     */
+    public Map<String, Timing> phases = new HashMap<>();
+
+    /**
+     * How many times each source file has been parsed
+     */
+    public Map<String, Integer> compiledFiles = new HashMap<>();
+
+    /**
+     * Number of classes javac has read from .class files
+     */
+    public int classesRead;
+
+    /**
+     * Time spent answering each type of request, from when it starts running until its response is ready
+     */
+    public Map<String, Timing> requests = new HashMap<>();
+
+    /**
+     * How many source files the background indexer has parsed, and how many it has found
+     */
+    public int indexedFiles, filesToIndex;
+
+    /**
+     * Number of declarations in the index of each compiler, added up
+     */
+    public int classIndexSize;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ResponseStats that = (ResponseStats) o;
+        return classesRead == that.classesRead &&
+               indexedFiles == that.indexedFiles &&
+               filesToIndex == that.filesToIndex &&
+               classIndexSize == that.classIndexSize &&
+               Objects.equals(phases, that.phases) &&
+               Objects.equals(compiledFiles, that.compiledFiles) &&
+               Objects.equals(requests, that.requests);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(phases, compiledFiles, classesRead, requests, indexedFiles, filesToIndex, classIndexSize);
+    }
+}
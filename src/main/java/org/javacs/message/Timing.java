@@ -0,0 +1,34 @@
+package org.javacs.message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+public class Timing {
+    public long count;
+
+    public double totalMillis;
+
+    public double maxMillis;
+
+    /**
+     * histogram[0] counts durations under 1ms, histogram[i] counts durations from 2^(i-1)ms up to 2^i ms
+     */
+    public List<Long> histogram = new ArrayList<>();
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Timing timing = (Timing) o;
+        return count == timing.count &&
+               Double.compare(timing.totalMillis, totalMillis) == 0 &&
+               Double.compare(timing.maxMillis, maxMillis) == 0 &&
+               Objects.equals(histogram, timing.histogram);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(count, totalMillis, maxMillis, histogram);
+    }
+}
@@ -0,0 +1,153 @@
+package org.javacs;
+
+import org.junit.Test;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CompilerPoolTest extends Fixtures {
+    private final CompilerPool pool = new CompilerPool(Arrays.asList(newCompiler(), newCompiler()));
+
+    @Test
+    public void interactiveGetsLastCompiler() {
+        try (CompilerPool.Lease lint = pool.acquire("/Lint.java", CompilerPool.Use.BACKGROUND);
+             CompilerPool.Lease autocomplete = pool.acquire("/Autocomplete.java", CompilerPool.Use.INTERACTIVE)) {
+            assertThat(autocomplete.compiler, not(sameInstance(lint.compiler)));
+        }
+    }
+
+    @Test
+    public void sameFileSameCompiler() {
+        JavacHolder first;
+
+        try (CompilerPool.Lease lease = pool.acquire("/Second.java", CompilerPool.Use.INTERACTIVE);
+             CompilerPool.Lease other = pool.acquire("/First.java", CompilerPool.Use.INTERACTIVE)) {
+            first = other.compiler;
+        }
+
+        try (CompilerPool.Lease lease = pool.acquire("/First.java", CompilerPool.Use.INTERACTIVE)) {
+            assertThat(lease.compiler, sameInstance(first));
+        }
+    }
+
+    @Test
+    public void fileSticksToFirstCompiler() {
+        JavacHolder first;
+
+        try (CompilerPool.Lease lease = pool.acquire("/Sticky.java", CompilerPool.Use.INTERACTIVE)) {
+            first = lease.compiler;
+
+            // Autocomplete doesn't wait, but it doesn't move the file either
+            try (CompilerPool.Lease other = pool.acquire("/Sticky.java", CompilerPool.Use.INTERACTIVE)) {
+                assertThat(other.compiler, not(sameInstance(first)));
+            }
+        }
+
+        try (CompilerPool.Lease lease = pool.acquire("/Sticky.java", CompilerPool.Use.BACKGROUND)) {
+            assertThat(lease.compiler, sameInstance(first));
+        }
+    }
+
+    @Test
+    public void closeWaitsForLeases() {
+        try (CompilerPool.Lease lint = pool.acquire("/Lint.java", CompilerPool.Use.BACKGROUND)) {
+            pool.close();
+
+            try (CompilerPool.Lease autocomplete = pool.acquire("/Autocomplete.java", CompilerPool.Use.INTERACTIVE)) {
+                assertThat(autocomplete.compiler, not(sameInstance(lint.compiler)));
+            }
+        }
+
+        try {
+            pool.acquire("/Autocomplete.java", CompilerPool.Use.INTERACTIVE);
+
+            fail("Acquired a closed compiler");
+        } catch (CancellationException e) {
+            assertThat(e.getMessage(), containsString("closed"));
+        }
+    }
+
+    @Test
+    public void catchUpWithOtherCompilers() {
+        Path dependency = Paths.get("CatchUpDependency.java").toAbsolutePath(), dependent = Paths.get("CatchUpDependent.java").toAbsolutePath();
+        Map<Path, String> text = new HashMap<>();
+        StringFileObject use = new StringFileObject("public class CatchUpDependent { void test(CatchUpDependency d) { d.after(); } }", dependent);
+        JavacHolder edited, other;
+
+        for (JavacHolder compiler : pool.all())
+            compiler.openText(path -> Optional.ofNullable(text.get(path)));
+
+        text.put(dependency, "public class CatchUpDependency { void before() { } }");
+
+        try (CompilerPool.Lease one = pool.acquire(dependent.toString(), CompilerPool.Use.INTERACTIVE);
+             CompilerPool.Lease two = pool.acquire(dependent.toString(), CompilerPool.Use.INTERACTIVE)) {
+            edited = one.compiler;
+            other = two.compiler;
+
+            other.compile(other.parse(new StringFileObject(text.get(dependency), dependency)));
+
+            assertThat(errors(other, use), not(empty()));
+
+            text.put(dependency, "public class CatchUpDependency { void after() { } }");
+
+            edited.compile(edited.parse(new StringFileObject(text.get(dependency), dependency)));
+        }
+
+        try (CompilerPool.Lease one = pool.acquire(dependent.toString(), CompilerPool.Use.INTERACTIVE);
+             CompilerPool.Lease two = pool.acquire(dependent.toString(), CompilerPool.Use.INTERACTIVE)) {
+            assertThat(errors(other, use), empty());
+        }
+    }
+
+    @Test
+    public void otherCompilersForgetDeletedFile() throws IOException {
+        Path path = Files.createTempDirectory("deleted").resolve("PoolDeleted.java");
+        JavacHolder finder, other;
+
+        Files.write(path, "public class PoolDeleted { }".getBytes());
+
+        try (CompilerPool.Lease one = pool.acquire(path.toString(), CompilerPool.Use.INTERACTIVE);
+             CompilerPool.Lease two = pool.acquire(path.toString(), CompilerPool.Use.INTERACTIVE)) {
+            finder = one.compiler;
+            other = two.compiler;
+
+            other.compile(other.parse(other.fileManager.getRegularFile(path.toFile())));
+
+            Files.delete(path);
+            pool.changed(finder, path.toUri(), Optional.empty());
+
+            // other is in use, so it doesn't forget until its next lease
+            assertThat(other.context.get(ClassIndex.class).analyzed(path.toUri()), equalTo(true));
+        }
+
+        try (CompilerPool.Lease one = pool.acquire(path.toString(), CompilerPool.Use.INTERACTIVE);
+             CompilerPool.Lease two = pool.acquire(path.toString(), CompilerPool.Use.INTERACTIVE)) {
+            assertThat(other.context.get(ClassIndex.class).analyzed(path.toUri()), equalTo(false));
+        }
+    }
+
+    private static List<?> errors(JavacHolder compiler, JavaFileObject file) {
+        DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
+
+        compiler.onError(errors);
+        compiler.compile(compiler.parse(file));
+
+        return errors.getDiagnostics();
+    }
+
+    private static JavacHolder newCompiler() {
+        return new JavacHolder(Collections.emptyList(),
+                               Collections.singletonList(Paths.get("src/test/resources")),
+                               Paths.get("target"));
+    }
+}
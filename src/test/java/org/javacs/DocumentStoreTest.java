@@ -0,0 +1,66 @@
+package org.javacs;
+
+import org.javacs.message.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class DocumentStoreTest {
+    @Test
+    public void applyEdits() throws IOException {
+        DocumentStore documents = new DocumentStore();
+
+        RequestDidOpen open = new RequestDidOpen();
+        open.path = "/Example.java";
+        open.version = 1;
+        open.text = "class Example {\n    int foo;\n}\n";
+
+        documents.open(open);
+
+        DocumentChange rename = new DocumentChange();
+        rename.range = Optional.of(new Range(new Position(1, 8), new Position(1, 11)));
+        rename.text = "bar";
+
+        DocumentChange insert = new DocumentChange();
+        insert.range = Optional.of(new Range(new Position(2, 0), new Position(2, 0)));
+        insert.text = "    void baz() { }\n";
+
+        RequestDidChange change = new RequestDidChange();
+        change.path = "/Example.java";
+        change.version = 2;
+        change.changes.add(rename);
+        change.changes.add(insert);
+
+        documents.change(change);
+
+        RequestAutocomplete autocomplete = new RequestAutocomplete();
+        autocomplete.path = "/Example.java";
+        autocomplete.version = Optional.of(2);
+
+        documents.resolve(autocomplete);
+
+        assertThat(autocomplete.text, equalTo("class Example {\n    int bar;\n    void baz() { }\n}\n"));
+    }
+
+    @Test(expected = ReturnError.class)
+    public void wrongVersion() {
+        DocumentStore documents = new DocumentStore();
+
+        RequestDidOpen open = new RequestDidOpen();
+        open.path = "/Example.java";
+        open.version = 1;
+        open.text = "class Example { }";
+
+        documents.open(open);
+
+        RequestGoto request = new RequestGoto();
+        request.path = "/Example.java";
+        request.version = Optional.of(2);
+
+        documents.resolve(request);
+    }
+}
@@ -5,6 +5,8 @@ import com.sun.tools.javac.api.JavacTrees;
 import com.sun.tools.javac.code.Type;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.util.Context;
+import org.javacs.message.RequestLint;
+import org.javacs.message.ResponseLint;
 import org.junit.Test;
 
 import javax.tools.Diagnostic;
@@ -13,6 +15,8 @@ import javax.tools.JavaFileObject;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import static org.hamcrest.Matchers.*;
@@ -32,6 +36,105 @@ public class LinterTest extends Fixtures {
         assertThat(errors.getDiagnostics(), empty());
     }
 
+    @Test
+    public void lintDelta() throws IOException {
+        Services services = new Services(newCompiler());
+        String path = Paths.get("src/test/resources/org/javacs/example/UndefinedSymbol.java").toAbsolutePath().toString();
+        RequestLint lint = new RequestLint();
+
+        lint.path = path;
+        lint.delta = true;
+
+        ResponseLint first = services.lint(lint);
+
+        assertThat(first.messages.keySet(), empty());
+        assertThat(first.added.get(path), hasSize(1));
+
+        // Nothing changed
+        ResponseLint second = services.lint(lint);
+
+        assertThat(second.added.keySet(), empty());
+        assertThat(second.removed.keySet(), empty());
+
+        // Fix the error
+        lint.text = "package org.javacs.example; public class UndefinedSymbol { public String test() { return \"foo\"; } }";
+
+        ResponseLint third = services.lint(lint);
+
+        assertThat(third.added.keySet(), empty());
+        assertThat(third.removed.get(path), equalTo(first.added.get(path)));
+    }
+
+    @Test
+    public void unsentLintIsNotPublished() throws IOException {
+        Services services = new Services(newCompiler());
+        String path = Paths.get("src/test/resources/org/javacs/example/UndefinedSymbol.java").toAbsolutePath().toString();
+        RequestLint lint = new RequestLint();
+        CompletableFuture<Void> cancelled = new CompletableFuture<>();
+
+        lint.path = path;
+        lint.delta = true;
+
+        cancelled.cancel(false);
+
+        ResponseLint first = services.lint(lint, partial -> {}, pushed -> {}, cancelled);
+
+        assertThat(first.added.get(path), hasSize(1));
+
+        // The client never got the first response, so it still needs the error
+        ResponseLint second = services.lint(lint);
+
+        assertThat(second.added.get(path), equalTo(first.added.get(path)));
+    }
+
+    @Test
+    public void streamDelta() throws IOException {
+        Services services = new Services(newCompiler());
+        String path = Paths.get("src/test/resources/org/javacs/example/StreamDelta.java").toAbsolutePath().toString();
+        RequestLint lint = new RequestLint();
+
+        lint.path = path;
+        lint.text = "package org.javacs.example; public class StreamDelta { ";
+        lint.stream = true;
+        lint.delta = true;
+
+        List<ResponseLint> partials = new ArrayList<>();
+        ResponseLint response = services.lint(lint, partials::add, pushed -> {}, CompletableFuture.completedFuture(null));
+
+        assertThat(partials, hasSize(1));
+        assertThat(partials.get(0).added.get(path), hasSize(1));
+
+        // The final response replaces the partial one, so it has the syntax error too
+        assertThat(response.added.get(path), equalTo(partials.get(0).added.get(path)));
+    }
+
+    @Test
+    public void pushDependents() throws Exception {
+        Services services = new Services(newCompiler());
+        String to = Paths.get("src/test/resources/org/javacs/example/ReferenceTo.java").toAbsolutePath().toString();
+        String from = Paths.get("src/test/resources/org/javacs/example/ReferenceFrom.java").toAbsolutePath().toString();
+        RequestLint lintTo = new RequestLint(), lintFrom = new RequestLint();
+
+        lintTo.path = to;
+        lintFrom.path = from;
+
+        services.lint(lintTo);
+        services.lint(lintFrom);
+
+        // Rename the method ReferenceFrom calls
+        RequestLint change = new RequestLint();
+
+        change.path = to;
+        change.text = "package org.javacs.example; public class ReferenceTo { public static void renamed() { } }";
+        change.push = true;
+
+        CompletableFuture<ResponseLint> pushed = new CompletableFuture<>();
+        ResponseLint response = services.lint(change, partial -> {}, pushed::complete, CompletableFuture.completedFuture(null));
+
+        assertThat(response.messages.keySet(), contains(to));
+        assertThat(pushed.get(10, TimeUnit.SECONDS).messages.get(from), hasSize(1));
+    }
+
     @Test
     public void inspectTree() throws IOException {
         DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
@@ -183,6 +286,6 @@ public class LinterTest extends Fixtures {
     private static JavacHolder newCompiler() {
         return new JavacHolder(Collections.emptyList(),
                                Collections.singletonList(Paths.get("src/test/resources")),
-                               Paths.get("out"));
+                               Paths.get("target"));
     }
 }
@@ -23,7 +23,7 @@ public class ParserTest extends Fixtures {
         GetResourceFileObject file = new GetResourceFileObject("/org/javacs/example/MissingSemicolon.java");
         JavacHolder compiler = new JavacHolder(Collections.emptyList(),
                                                Collections.singletonList(Paths.get("src/test/resources")),
-                                               Paths.get("out"));
+                                               Paths.get("target"));
         List<String> methods = new ArrayList<>();
 
         compiler.afterParse(new TreeScanner() {
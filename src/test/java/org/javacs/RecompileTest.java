@@ -1,18 +1,27 @@
 package org.javacs;
 
+import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.util.Context;
+import org.javacs.message.ResponseStats;
 import org.junit.Test;
 
 import javax.tools.DiagnosticCollector;
 import javax.tools.JavaFileObject;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
 
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 
@@ -95,10 +104,291 @@ public class RecompileTest extends Fixtures {
         assertThat(parsedClassNames, contains("FixTypeError"));
     }
 
+    @Test
+    public void forgetLeastRecentlyParsed() {
+        StringFileObject first = new StringFileObject("public class ForgetFirst { }", Paths.get("ForgetFirst.java"));
+        JavacHolder compiler = newCompiler();
+        JCTree.JCCompilationUnit firstTree = compiler.parse(first);
+
+        assertThat(compiler.parse(first), sameInstance(firstTree));
+
+        for (int i = 0; i < JavacHolder.MAX_PARSED; i++)
+            compiler.parse(new StringFileObject("public class Forget" + i + " { }", Paths.get("Forget" + i + ".java")));
+
+        assertThat(compiler.parse(first), not(sameInstance(firstTree)));
+    }
+
+    @Test
+    public void collectEvictedTrees() throws InterruptedException {
+        StringFileObject first = new StringFileObject("public class CollectFirst { static final int X = 1; class Inner { } Runnable lambda = () -> { }; Object anonymous = new Object() { }; void foo() { } }", Paths.get("CollectFirst.java"));
+        JavacHolder compiler = newCompiler();
+        JCTree.JCCompilationUnit firstTree = compiler.parse(first);
+
+        compiler.compile(firstTree);
+
+        WeakReference<JCTree.JCCompilationUnit> collected = new WeakReference<>(firstTree);
+
+        firstTree = null;
+
+        for (int i = 0; i < JavacHolder.MAX_PARSED; i++)
+            compiler.compile(compiler.parse(new StringFileObject("public class Collect" + i + " { CollectFirst first; }", Paths.get("Collect" + i + ".java"))));
+
+        for (int i = 0; i < 10 && collected.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertThat(collected.get(), nullValue());
+    }
+
+    @Test
+    public void reuseUnchangedText() {
+        StringFileObject first = new StringFileObject("public class ReuseUnchanged { String foo() { return 1; } }", Paths.get("ReuseUnchanged.java"));
+        StringFileObject second = new StringFileObject(first.content, first.path);
+        JavacHolder compiler = newCompiler();
+        List<String> visits = new ArrayList<>();
+        DiagnosticCollector<JavaFileObject> firstErrors = new DiagnosticCollector<>(), secondErrors = new DiagnosticCollector<>();
+
+        compiler.afterAnalyze(new GetClass(compiler.context, visits));
+        compiler.onError(firstErrors);
+        compiler.compile(compiler.parse(first));
+        compiler.onError(secondErrors);
+        compiler.compile(compiler.parse(second));
+
+        ResponseStats stats = new ResponseStats();
+
+        compiler.stats.summarize(stats);
+
+        // Parsed once, but scanned and reported twice
+        assertThat(stats.compiledFiles.values(), contains(1));
+        assertThat(visits, contains("ReuseUnchanged", "ReuseUnchanged"));
+        assertThat(secondErrors.getDiagnostics(), hasSize(firstErrors.getDiagnostics().size()));
+        assertThat(secondErrors.getDiagnostics(), not(empty()));
+    }
+
+    @Test
+    public void flowAfterAttribute() {
+        StringFileObject file = new StringFileObject("public class FlowLater { int foo() { } }", Paths.get("FlowLater.java"));
+        JavacHolder compiler = newCompiler();
+        List<String> visits = new ArrayList<>();
+        DiagnosticCollector<JavaFileObject> attributeErrors = new DiagnosticCollector<>(), flowErrors = new DiagnosticCollector<>();
+
+        compiler.afterAnalyze(new GetClass(compiler.context, visits));
+        compiler.onError(attributeErrors);
+        compiler.compile(compiler.parse(file), JavacHolder.CompilePolicy.ATTRIBUTE);
+
+        // Missing return is found by flow
+        assertThat(attributeErrors.getDiagnostics(), empty());
+        assertThat(visits, contains("FlowLater"));
+
+        compiler.onError(flowErrors);
+        compiler.compile(compiler.parse(file));
+
+        assertThat(flowErrors.getDiagnostics(), hasSize(1));
+        assertThat(visits, contains("FlowLater", "FlowLater"));
+    }
+
+    @Test
+    public void compileAroundCursor() {
+        String text = "public class CompileAround { String first() { return 1; } String second() { return 2; } }";
+        StringFileObject file = new StringFileObject(text, Paths.get("CompileAround.java"));
+        JavacHolder compiler = newCompiler();
+        DiagnosticCollector<JavaFileObject> aroundFirst = new DiagnosticCollector<>(), all = new DiagnosticCollector<>();
+
+        // Only first() is attributed
+        compiler.onError(aroundFirst);
+        compiler.compileAround(file, text.indexOf("return 1"));
+
+        assertThat(aroundFirst.getDiagnostics(), hasSize(1));
+        assertThat(aroundFirst.getDiagnostics().get(0).getStartPosition(), equalTo((long) text.indexOf("1;")));
+
+        // Linting the same text can't use the pruned tree
+        compiler.onError(all);
+        compiler.compile(compiler.parse(file));
+
+        assertThat(all.getDiagnostics(), hasSize(2));
+    }
+
+    @Test
+    public void forgetPrunedTreeWhenDependencyChanges() {
+        String text = "public class PrunedDependent { void first() { PrunedDependency.foo(); } void second() { int x = 1; } }";
+        StringFileObject dependency = new StringFileObject("public class PrunedDependency { public static void foo() { } }", Paths.get("PrunedDependency.java"));
+        StringFileObject changed = new StringFileObject("public class PrunedDependency { public static void bar() { } }", Paths.get("PrunedDependency.java"));
+        StringFileObject dependent = new StringFileObject(text, Paths.get("PrunedDependent.java"));
+        JavacHolder compiler = newCompiler();
+        long cursor = text.indexOf("foo");
+
+        compiler.compile(compiler.parse(dependency));
+
+        JCTree.JCCompilationUnit pruned = compiler.compileAround(dependent, cursor);
+
+        assertThat(compiler.compileAround(dependent, cursor), sameInstance(pruned));
+
+        compiler.compile(compiler.parse(changed));
+
+        assertThat(compiler.compileAround(dependent, cursor), not(sameInstance(pruned)));
+    }
+
+    @Test
+    public void recompileLocalClasses() {
+        StringFileObject file = new StringFileObject("public class LocalClasses { void test() { class Local { } Runnable r = new Runnable() { public void run() { } }; } }", Paths.get("LocalClasses.java"));
+        JavacHolder compiler = newCompiler();
+        DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
+
+        compiler.onError(errors);
+        compiler.compile(compiler.parse(file));
+        compiler.compile(compiler.parse(file));
+
+        assertThat(errors.getDiagnostics(), empty());
+    }
+
+    @Test
+    public void recompileDependents() {
+        StringFileObject dependency = new StringFileObject("public class Dependency { public static void foo() { } }", Paths.get("Dependency.java"));
+        StringFileObject dependent = new StringFileObject("public class Dependent { void test() { Dependency.foo(); } }", Paths.get("Dependent.java"));
+        StringFileObject changedBody = new StringFileObject("public class Dependency { public static void foo() { int x = 1; } }", Paths.get("Dependency.java"));
+        StringFileObject changedApi = new StringFileObject("public class Dependency { public static void bar() { } }", Paths.get("Dependency.java"));
+        JavacHolder compiler = newCompiler();
+        DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
+
+        compiler.openText(open(dependent));
+        compiler.onError(errors);
+        compiler.compileWithDependents(compiler.parse(dependency));
+        compiler.compileWithDependents(compiler.parse(dependent));
+
+        assertThat(errors.getDiagnostics(), empty());
+
+        // Changing a method body doesn't affect Dependent
+        assertThat(compiler.compileWithDependents(compiler.parse(changedBody)), empty());
+
+        // Removing foo breaks Dependent
+        List<JavaFileObject> recompiled = compiler.compileWithDependents(compiler.parse(changedApi));
+
+        assertThat(recompiled.stream().map(JavaFileObject::toUri).collect(toList()), contains(dependent.toUri()));
+        assertThat(errors.getDiagnostics(), hasSize(1));
+        assertThat(errors.getDiagnostics().get(0).getSource().toUri(), equalTo(dependent.toUri()));
+    }
+
+    @Test
+    public void recompileCurrentDependent() {
+        StringFileObject dependency = new StringFileObject("public class CurrentDependency { public static void foo() { } }", Paths.get("CurrentDependency.java"));
+        StringFileObject dependent = new StringFileObject("public class CurrentDependent { void test() { CurrentDependency.foo(); } }", Paths.get("CurrentDependent.java"));
+        StringFileObject editedDependent = new StringFileObject("public class CurrentDependent { void test() { } }", Paths.get("CurrentDependent.java"));
+        StringFileObject changedApi = new StringFileObject("public class CurrentDependency { public static void bar() { } }", Paths.get("CurrentDependency.java"));
+        JavacHolder compiler = newCompiler();
+        DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
+        Map<Path, String> open = new HashMap<>();
+
+        open.put(dependent.path.toAbsolutePath(), dependent.content);
+
+        compiler.openText(path -> Optional.ofNullable(open.get(path)));
+        compiler.onError(errors);
+        compiler.compileWithDependents(compiler.parse(dependency));
+        compiler.compileWithDependents(compiler.parse(dependent));
+
+        // The user stops calling foo, but we haven't compiled that yet
+        open.put(editedDependent.path.toAbsolutePath(), editedDependent.content);
+
+        List<JavaFileObject> recompiled = compiler.compileWithDependents(compiler.parse(changedApi));
+
+        assertThat(recompiled, hasSize(1));
+        assertThat(errors.getDiagnostics(), empty());
+    }
+
+    private static Function<Path, Optional<String>> open(StringFileObject file) {
+        return path -> path.equals(file.path.toAbsolutePath()) ? Optional.of(file.content) : Optional.empty();
+    }
+
+    @Test
+    public void replaceDeclarations() {
+        StringFileObject before = new StringFileObject("public class Replace { void foo() { } void bar() { } }", Paths.get("Replace.java"));
+        StringFileObject after = new StringFileObject("public class Replace { void foo() { } }", Paths.get("Replace.java"));
+        JavacHolder compiler = newCompiler();
+        ClassIndex index = compiler.context.get(ClassIndex.class);
+
+        compiler.compile(compiler.parse(before));
+
+        int size = index.size();
+
+        compiler.compile(compiler.parse(after));
+
+        assertThat(index.size(), equalTo(size - 1));
+    }
+
+    @Test
+    public void nameAfterKeyword() {
+        String text = "public enum num { ONE }";
+        StringFileObject file = new StringFileObject(text, Paths.get("num.java"));
+        JavacHolder compiler = newCompiler();
+        List<Symbol> classes = new ArrayList<>();
+
+        compiler.afterAnalyze(new BaseScanner(compiler.context) {
+            @Override
+            public void visitClassDef(JCTree.JCClassDecl tree) {
+                classes.add(tree.sym);
+            }
+        });
+        compiler.compile(compiler.parse(file));
+
+        SymbolLocation location = compiler.context.get(ClassIndex.class).locate(classes.get(0)).get();
+
+        // 'enum' contains 'num', but that's not the name
+        assertThat(location.startPosition, equalTo((long) text.indexOf("num {")));
+    }
+
+    @Test
+    public void forgetDeletedFile() throws IOException {
+        Path path = Files.createTempDirectory("deleted").resolve("Deleted.java");
+        JavacHolder compiler = newCompiler();
+        ClassIndex index = compiler.context.get(ClassIndex.class);
+        List<Symbol> classes = new ArrayList<>();
+
+        Files.write(path, "public class Deleted { }".getBytes());
+
+        compiler.afterAnalyze(new BaseScanner(compiler.context) {
+            @Override
+            public void visitClassDef(JCTree.JCClassDecl tree) {
+                classes.add(tree.sym);
+            }
+        });
+        compiler.compile(compiler.parse(compiler.fileManager.getRegularFile(path.toFile())));
+
+        assertThat(index.locate(classes.get(0)).isPresent(), equalTo(true));
+
+        Files.delete(path);
+        index.deleted(path.toUri());
+
+        assertThat(index.locate(classes.get(0)).isPresent(), equalTo(false));
+        assertThat(index.size(), equalTo(0));
+    }
+
+    @Test
+    public void preferSourceToClassFile() throws IOException {
+        Path directory = Files.createTempDirectory("prefer-source");
+        Path sourcePath = Files.createDirectories(directory.resolve("src"));
+        Path outputDirectory = Files.createDirectories(directory.resolve("out"));
+        Path source = sourcePath.resolve("Changed.java");
+
+        // The class file is newer than the source, but it's out of date, so reading it at all is an error
+        Files.write(source, "public class Changed { public static void foo() { } }".getBytes());
+        Files.write(outputDirectory.resolve("Changed.class"), new byte[0]);
+
+        JavacHolder compiler = new JavacHolder(Collections.singletonList(outputDirectory),
+                                               Collections.singletonList(sourcePath),
+                                               outputDirectory);
+        StringFileObject file = new StringFileObject("public class UseChanged { void test() { Changed.foo(); } }", Paths.get("UseChanged.java"));
+        DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
+
+        compiler.onError(errors);
+        compiler.compile(compiler.parse(file));
+
+        assertThat(errors.getDiagnostics(), empty());
+    }
+
     private static JavacHolder newCompiler() {
         return new JavacHolder(Collections.emptyList(),
                                Collections.singletonList(Paths.get("src/test/resources")),
-                               Paths.get("out"));
+                               Paths.get("target"));
     }
 
     @Test
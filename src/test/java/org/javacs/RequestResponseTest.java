@@ -5,14 +5,14 @@ import com.fasterxml.jackson.databind.MappingIterator;
 import org.javacs.message.*;
 import org.junit.Test;
 
-import java.io.IOException;
+import java.io.*;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collections;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 
@@ -44,13 +44,96 @@ public class RequestResponseTest extends Fixtures {
         MappingIterator<Request> in = Main.JSON.readValues(parser, Request.class);
         ResponseCollector out = new ResponseCollector();
 
+        setSystemProperties();
+
+        new Main(in, out).run();
+
+        return out.responses;
+    }
+
+    /**
+     * Like responses(String), but waits for each request to respond before sending the next one
+     */
+    private List<Response> responsesInOrder(Request... requests) throws IOException {
+        ResponseCollector out = new ResponseCollector();
+        Iterator<Request> in = new Iterator<Request>() {
+            private int sent = 0;
+
+            @Override
+            public boolean hasNext() {
+                return sent < requests.length;
+            }
+
+            @Override
+            public Request next() {
+                // Main sends responses while holding the lock on out
+                while (true) {
+                    synchronized (out) {
+                        if (out.responses.size() >= sent)
+                            return requests[sent++];
+                    }
+
+                    Thread.yield();
+                }
+            }
+        };
+
+        setSystemProperties();
+
+        new Main(in, out).run();
+
+        return out.responses;
+    }
+
+    private static void setSystemProperties() {
         System.setProperty("javacs.sourcePath", "src/test/resources");
         System.setProperty("javacs.classPath", "");
         System.setProperty("javacs.outputDirectory", "target");
+    }
 
-        new Main(in, out).run();
+    @Test
+    public void smileEcho() throws IOException {
+        Request request = new Request();
+        request.requestId = 1;
+        request.echo = Optional.of(Main.JSON.readTree("\"Hello world!\""));
 
-        return out.responses;
+        byte[] body = SmileFraming.SMILE.writeValueAsBytes(request);
+        ByteArrayOutputStream framed = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(framed);
+
+        data.write(SmileFraming.HEADER);
+        data.writeInt(body.length);
+        data.write(body);
+
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(framed.toByteArray()));
+
+        assertThat(SmileFraming.negotiate(in), equalTo(true));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        setSystemProperties();
+
+        new Main(SmileFraming.requests(in), SmileFraming.responses(out)).run();
+
+        // Responses are framed the same way as requests
+        DataInputStream responseData = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        byte[] responseBody = new byte[responseData.readInt()];
+
+        responseData.readFully(responseBody);
+
+        Response expected = new Response(1);
+
+        expected.echo = request.echo;
+
+        assertThat(SmileFraming.SMILE.readValue(responseBody, Response.class), equalTo(expected));
+    }
+
+    @Test
+    public void jsonIsDefault() throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream("{\"requestId\":1}".getBytes()));
+
+        assertThat(SmileFraming.negotiate(in), equalTo(false));
+        assertThat(in.read(), equalTo((int) '{'));
     }
 
     @Test
@@ -128,6 +211,350 @@ public class RequestResponseTest extends Fixtures {
         assertThat(responses.toString(), containsString("No such file or directory"));
     }
 
+    @Test
+    public void cancelQueuedRequest() throws URISyntaxException, IOException {
+        Path file = Paths.get(RequestResponseTest.class.getResource("/org/javacs/example/UndefinedSymbol.java").toURI());
+
+        RequestLint lint = new RequestLint();
+        lint.path = file.toString();
+
+        Request first = new Request();
+        first.requestId = 1;
+        first.lint = Optional.of(lint);
+
+        Request second = new Request();
+        second.requestId = 2;
+        second.lint = Optional.of(lint);
+
+        RequestIdOnly cancelSecond = new RequestIdOnly();
+        cancelSecond.requestId = 2;
+
+        Request cancel = new Request();
+        cancel.requestId = 3;
+        cancel.cancel = Optional.of(cancelSecond);
+
+        List<Response> responses = responses(first.toString() + second.toString() + cancel.toString());
+
+        Response cancelled = new Response(2);
+        cancelled.error = Optional.of(new ResponseError("Cancelled"));
+
+        assertThat(responses, hasSize(3));
+        assertThat(responses, hasItems(cancelled, new Response(3)));
+    }
+
+    @Test
+    public void echoJumpsAheadOfLint() throws URISyntaxException, IOException {
+        Path file = Paths.get(RequestResponseTest.class.getResource("/org/javacs/example/UndefinedSymbol.java").toURI());
+
+        RequestLint lint = new RequestLint();
+        lint.path = file.toString();
+
+        Request first = new Request();
+        first.requestId = 1;
+        first.lint = Optional.of(lint);
+
+        Request second = new Request();
+        second.requestId = 2;
+        second.lint = Optional.of(lint);
+
+        Request echo = new Request();
+        echo.requestId = 3;
+        echo.echo = Optional.of(Main.JSON.readTree("\"Hello world!\""));
+
+        List<Response> responses = responses(first.toString() + second.toString() + echo.toString());
+        List<Integer> order = responses.stream().map(response -> response.requestId.getAsInt()).collect(toList());
+
+        // Echo doesn't wait behind lints, which run one at a time
+        assertThat(order, hasSize(3));
+        assertThat(order.indexOf(3), lessThan(order.indexOf(2)));
+    }
+
+    @Test
+    public void coalesceLintsOfSameFile() throws URISyntaxException, IOException {
+        Path busy = Paths.get(RequestResponseTest.class.getResource("/org/javacs/example/UndefinedSymbol.java").toURI());
+        Path file = Paths.get(RequestResponseTest.class.getResource("/org/javacs/example/SingleLineUndefinedSymbol.java").toURI());
+
+        RequestLint lintBusy = new RequestLint();
+        lintBusy.path = busy.toString();
+
+        RequestLint lintFile = new RequestLint();
+        lintFile.path = file.toString();
+
+        Request first = new Request();
+        first.requestId = 1;
+        first.lint = Optional.of(lintBusy);
+
+        Request second = new Request();
+        second.requestId = 2;
+        second.lint = Optional.of(lintFile);
+
+        Request third = new Request();
+        third.requestId = 3;
+        third.lint = Optional.of(lintFile);
+
+        List<Response> responses = responses(first.toString() + second.toString() + third.toString());
+
+        ResponseLint responseLint = new ResponseLint();
+        String message = "cannot find symbol\n  symbol:   variable foo\n  location: class org.javacs.example.SingleLineUndefinedSymbol";
+        Range range = new Range(new Position(2, 71), new Position(2, 74));
+        responseLint.messages.put(file.toString(),
+                                  Collections.singletonList(new LintMessage(range, message, LintMessage.Type.Error)));
+
+        Response expectSecond = new Response(2);
+        expectSecond.lint = Optional.of(responseLint);
+
+        Response expectThird = new Response(3);
+        expectThird.lint = Optional.of(responseLint);
+
+        // 2 and 3 are answered by the same compilation, so 2 doesn't respond until 3 is done
+        assertThat(responses, hasSize(3));
+        assertThat(responses.subList(1, 3), containsInAnyOrder(expectSecond, expectThird));
+    }
+
+    @Test
+    public void cancelSupersededLint() throws URISyntaxException, IOException {
+        Path busy = Paths.get(RequestResponseTest.class.getResource("/org/javacs/example/UndefinedSymbol.java").toURI());
+        Path file = Paths.get(RequestResponseTest.class.getResource("/org/javacs/example/SingleLineUndefinedSymbol.java").toURI());
+
+        RequestLint lintBusy = new RequestLint();
+        lintBusy.path = busy.toString();
+
+        RequestLint lintFile = new RequestLint();
+        lintFile.path = file.toString();
+
+        Request first = new Request();
+        first.requestId = 1;
+        first.lint = Optional.of(lintBusy);
+
+        Request second = new Request();
+        second.requestId = 2;
+        second.lint = Optional.of(lintFile);
+
+        Request third = new Request();
+        third.requestId = 3;
+        third.lint = Optional.of(lintFile);
+
+        RequestIdOnly cancelSecond = new RequestIdOnly();
+        cancelSecond.requestId = 2;
+
+        Request cancel = new Request();
+        cancel.requestId = 4;
+        cancel.cancel = Optional.of(cancelSecond);
+
+        List<Response> responses = responses(first.toString() + second.toString() + third.toString() + cancel.toString());
+
+        Response cancelled = new Response(2);
+        cancelled.error = Optional.of(new ResponseError("Cancelled"));
+
+        Response lintThird = responses.stream().filter(r -> r.requestId.getAsInt() == 3).findAny().get();
+
+        // 3 still runs, and 2 only gets its cancellation
+        assertThat(responses, hasSize(4));
+        assertThat(responses, hasItems(cancelled, new Response(4)));
+        assertThat(lintThird.lint.get().messages.get(file.toString()), hasSize(1));
+    }
+
+    @Test
+    public void dontCoalesceLintsWithDifferentOptions() throws URISyntaxException, IOException {
+        Path busy = Paths.get(RequestResponseTest.class.getResource("/org/javacs/example/UndefinedSymbol.java").toURI());
+        Path file = Paths.get(RequestResponseTest.class.getResource("/org/javacs/example/SingleLineUndefinedSymbol.java").toURI());
+
+        RequestLint lintBusy = new RequestLint();
+        lintBusy.path = busy.toString();
+
+        RequestLint resync = new RequestLint();
+        resync.path = file.toString();
+
+        RequestLint delta = new RequestLint();
+        delta.path = file.toString();
+        delta.delta = true;
+
+        Request first = new Request();
+        first.requestId = 1;
+        first.lint = Optional.of(lintBusy);
+
+        Request second = new Request();
+        second.requestId = 2;
+        second.lint = Optional.of(resync);
+
+        Request third = new Request();
+        third.requestId = 3;
+        third.lint = Optional.of(delta);
+
+        List<Response> responses = responses(first.toString() + second.toString() + third.toString());
+        Response lintSecond = responses.stream().filter(r -> r.requestId.getAsInt() == 2).findAny().get();
+
+        // The lint without delta still gets every message
+        assertThat(responses, hasSize(3));
+        assertThat(lintSecond.lint.get().delta, equalTo(false));
+        assertThat(lintSecond.lint.get().messages.get(file.toString()), hasSize(1));
+    }
+
+    @Test
+    public void lintOpenDocument() throws URISyntaxException, IOException {
+        Path file = Paths.get(RequestResponseTest.class.getResource("/org/javacs/example/HelloWorld.java").toURI());
+        String text = new String(Files.readAllBytes(file));
+
+        RequestDidOpen open = new RequestDidOpen();
+        open.path = file.toString();
+        open.version = 1;
+        open.text = text;
+
+        Request openRequest = new Request();
+        openRequest.requestId = 1;
+        openRequest.didOpen = Optional.of(open);
+
+        // Replace the whole document with a version that has an error
+        DocumentChange change = new DocumentChange();
+        change.text = text.replace("}", "").replace("{", "");
+
+        RequestDidChange didChange = new RequestDidChange();
+        didChange.path = file.toString();
+        didChange.version = 2;
+        didChange.changes.add(change);
+
+        Request changeRequest = new Request();
+        changeRequest.requestId = 2;
+        changeRequest.didChange = Optional.of(didChange);
+
+        RequestLint lint = new RequestLint();
+        lint.path = file.toString();
+        lint.version = Optional.of(2);
+
+        Request lintRequest = new Request();
+        lintRequest.requestId = 3;
+        lintRequest.lint = Optional.of(lint);
+
+        List<Response> responses = responses(openRequest.toString() + changeRequest.toString() + lintRequest.toString());
+
+        assertThat(responses, hasItems(new Response(1), new Response(2)));
+
+        Response lintResponse = responses.stream().filter(r -> r.requestId.getAsInt() == 3).findAny().get();
+
+        assertThat(lintResponse.lint.get().messages.get(file.toString()), not(empty()));
+    }
+
+    @Test
+    public void sampleLoggedPayloads() {
+        assertThat(Main.sampled(6, 3), equalTo(true));
+        assertThat(Main.sampled(7, 3), equalTo(false));
+        assertThat(Main.sampled(7, 1), equalTo(true));
+        // 0 means never
+        assertThat(Main.sampled(7, 0), equalTo(false));
+    }
+
+    @Test
+    public void truncateLoggedPayload() {
+        RequestLint lint = new RequestLint();
+        lint.path = "/Short.java";
+
+        assertThat(Main.prettyPrint(lint, 1000), containsString("/Short.java"));
+
+        lint.text = String.join("", Collections.nCopies(100, "long text "));
+
+        String truncated = Main.prettyPrint(lint, 20);
+
+        assertThat(truncated.length(), equalTo(20 + "...".length()));
+        assertThat(truncated, endsWith("..."));
+    }
+
+    @Test
+    public void streamLint() throws IOException {
+        RequestLint lint = new RequestLint();
+        lint.path = "/StreamLint.java";
+        lint.text = "class StreamLint { void test() { int x = 1; }";
+        lint.stream = true;
+
+        Request request = new Request();
+        request.requestId = 1;
+        request.lint = Optional.of(lint);
+
+        List<ResponseLint> responses = responses(request.toString()).stream()
+                                                                    .filter(r -> r.lint.isPresent())
+                                                                    .map(r -> r.lint.get())
+                                                                    .collect(toList());
+
+        assertThat(responses, hasSize(2));
+
+        ResponseLint syntax = responses.get(0), all = responses.get(1);
+
+        assertThat(syntax.partial, equalTo(true));
+        assertThat(syntax.messages.get(lint.path), hasSize(1));
+        assertThat(syntax.messages.get(lint.path).get(0).message, containsString("reached end of file"));
+        assertThat(all.partial, equalTo(false));
+        assertThat(all.messages.get(lint.path), hasItem(syntax.messages.get(lint.path).get(0)));
+    }
+
+    @Test
+    public void statsAfterLint() throws URISyntaxException, IOException {
+        Path file = Paths.get(RequestResponseTest.class.getResource("/org/javacs/example/HelloWorld.java").toURI());
+
+        RequestLint lint = new RequestLint();
+        lint.path = file.toString();
+
+        Request lintRequest = new Request();
+        lintRequest.requestId = 1;
+        lintRequest.lint = Optional.of(lint);
+
+        Request statsRequest = new Request();
+        statsRequest.requestId = 2;
+        statsRequest.stats = Optional.of(new RequestStats());
+
+        List<Response> responses = responsesInOrder(lintRequest, statsRequest);
+        ResponseStats stats = responses.stream().filter(r -> r.requestId.getAsInt() == 2).findAny().get().stats.get();
+
+        assertThat(stats.phases.keySet(), hasItems("PARSE", "ENTER", "ANALYZE"));
+        assertThat(stats.compiledFiles, hasEntry(file.toString(), 1));
+        assertThat(stats.classesRead, greaterThan(0));
+        assertThat(stats.requests.get("lint").count, equalTo(1L));
+    }
+
+    @Test
+    public void duplicateSuggestions() {
+        Set<AutocompleteSuggestion> suggestions = new LinkedHashSet<>();
+
+        suggestions.add(new AutocompleteSuggestion("foo", "foo", AutocompleteSuggestion.Type.Variable));
+        suggestions.add(new AutocompleteSuggestion("foo", "foo", AutocompleteSuggestion.Type.Variable));
+
+        assertThat(suggestions, hasSize(1));
+    }
+
+    @Test
+    public void lintInOtherWorkspace() throws URISyntaxException, IOException {
+        Path file = Paths.get(RequestResponseTest.class.getResource("/org/javacs/example/UndefinedSymbol.java").toURI());
+
+        RequestOpenWorkspace open = new RequestOpenWorkspace();
+        open.id = "other";
+        open.sourcePath = Collections.singletonList("src/test/resources");
+        open.classPath = Collections.emptyList();
+        open.outputDirectory = "target";
+
+        Request openRequest = new Request();
+        openRequest.requestId = 1;
+        openRequest.openWorkspace = Optional.of(open);
+
+        RequestLint lint = new RequestLint();
+        lint.path = file.toString();
+
+        Request lintRequest = new Request();
+        lintRequest.requestId = 2;
+        lintRequest.workspace = Optional.of("other");
+        lintRequest.lint = Optional.of(lint);
+
+        Request unknownRequest = new Request();
+        unknownRequest.requestId = 3;
+        unknownRequest.workspace = Optional.of("unknown");
+        unknownRequest.lint = Optional.of(lint);
+
+        List<Response> responses = responses(openRequest.toString() + lintRequest.toString() + unknownRequest.toString());
+
+        Response lintResponse = responses.stream().filter(r -> r.requestId.getAsInt() == 2).findAny().get();
+        Response unknownResponse = responses.stream().filter(r -> r.requestId.getAsInt() == 3).findAny().get();
+
+        assertThat(lintResponse.lint.get().messages.get(file.toString()), hasSize(1));
+        assertThat(unknownResponse.error.get().message, containsString("Workspace unknown has not been opened"));
+    }
+
     @Test
     public void badlyFormattedRequest() throws IOException {
         String request = "{\"requestId\":1,\"lint\":[\"oops!\"]}";
@@ -0,0 +1,146 @@
+package org.javacs;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.util.Context;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SymbolIndexTest extends Fixtures {
+    @Test
+    public void sameLocationsAsCompiler() throws InterruptedException, IOException {
+        SymbolIndex index = new SymbolIndex();
+
+        index.indexInBackground(Collections.singletonList(Paths.get("src/test/resources")), Files.createTempDirectory("index"));
+
+        JavacHolder compiler = new JavacHolder(Collections.emptyList(),
+                                               Collections.singletonList(Paths.get("src/test/resources")),
+                                               Paths.get("target"));
+        List<Symbol> declared = new ArrayList<>();
+
+        compiler.afterAnalyze(new GetDeclarations(compiler.context, declared));
+        compiler.compile(compiler.parse(compiler.fileManager.getRegularFile(Paths.get("src/test/resources/org/javacs/example/Goto.java").toFile())));
+
+        while (index.filesToIndex() == 0 || index.indexedFiles() < index.filesToIndex())
+            Thread.sleep(10);
+
+        assertThat(declared, not(empty()));
+
+        for (Symbol symbol : declared) {
+            Optional<SymbolLocation> expected = compiler.context.get(ClassIndex.class).locate(symbol);
+
+            assertThat(symbol.toString(), index.locate(symbol), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void loadSavedIndex() throws Exception {
+        Path outputDirectory = Files.createTempDirectory("index");
+        Path source = Paths.get("src/test/resources/org/javacs/example/Goto.java");
+        SymbolIndex first = new SymbolIndex();
+
+        first.indexInBackground(Collections.singletonList(Paths.get("src/test/resources")), outputDirectory).get();
+
+        assertThat(Files.exists(outputDirectory.resolve(SymbolIndex.INDEX_FILE)), equalTo(true));
+
+        JavacHolder compiler = new JavacHolder(Collections.emptyList(),
+                                               Collections.singletonList(Paths.get("src/test/resources")),
+                                               Paths.get("target"));
+        List<Symbol> declared = new ArrayList<>();
+
+        compiler.afterAnalyze(new GetDeclarations(compiler.context, declared));
+        compiler.compile(compiler.parse(compiler.fileManager.getRegularFile(source.toFile())));
+
+        SymbolIndex second = new SymbolIndex();
+
+        second.load(outputDirectory.resolve(SymbolIndex.INDEX_FILE));
+
+        assertThat(declared, not(empty()));
+        assertThat(second.locate(declared.get(0)).isPresent(), equalTo(true));
+
+        for (Symbol symbol : declared)
+            assertThat(symbol.toString(), second.locate(symbol), equalTo(first.locate(symbol)));
+
+        // We can replace the file we loaded, and nothing else is left behind
+        second.save(outputDirectory.resolve(SymbolIndex.INDEX_FILE));
+
+        try (Stream<Path> files = Files.list(outputDirectory)) {
+            assertThat(files.collect(toList()), contains(outputDirectory.resolve(SymbolIndex.INDEX_FILE)));
+        }
+    }
+
+    @Test
+    public void reindexChangedFile() throws IOException {
+        SymbolIndex index = new SymbolIndex();
+        JavacHolder compiler = new JavacHolder(Collections.emptyList(),
+                                               Collections.singletonList(Paths.get("src/test/resources")),
+                                               Paths.get("target"));
+        Path path = Paths.get("Reindexed.java").toAbsolutePath();
+        List<Symbol> declared = new ArrayList<>();
+
+        index.index(compiler.parse(new StringFileObject("public class Reindexed { void moved() { } }", path)));
+
+        compiler.afterAnalyze(new GetDeclarations(compiler.context, declared));
+
+        JCTree.JCCompilationUnit tree = compiler.parse(new StringFileObject("public class Reindexed { int added; void moved() { } }", path));
+
+        index.index(tree);
+        compiler.compile(tree);
+
+        assertThat(declared, hasSize(3));
+
+        for (Symbol symbol : declared)
+            assertThat(symbol.toString(), index.locate(symbol), equalTo(compiler.context.get(ClassIndex.class).locate(symbol)));
+    }
+
+    @Test
+    public void failedSaveLeavesNoTempFile() throws Exception {
+        Path outputDirectory = Files.createTempDirectory("index");
+        Path inTheWay = outputDirectory.resolve(SymbolIndex.INDEX_FILE);
+
+        // A non-empty directory can't be replaced by the saved file
+        Files.createDirectories(inTheWay.resolve("child"));
+
+        new SymbolIndex().save(inTheWay);
+
+        try (Stream<Path> files = Files.list(outputDirectory)) {
+            assertThat(files.collect(toList()), contains(inTheWay));
+        }
+    }
+
+    private static class GetDeclarations extends BaseScanner {
+        private final List<Symbol> declared;
+
+        public GetDeclarations(Context context, List<Symbol> declared) {
+            super(context);
+
+            this.declared = declared;
+        }
+
+        @Override
+        public void visitClassDef(JCTree.JCClassDecl tree) {
+            declared.add(tree.sym);
+
+            for (JCTree member : tree.defs) {
+                if (member instanceof JCTree.JCVariableDecl)
+                    declared.add(((JCTree.JCVariableDecl) member).sym);
+                // javac adds a default constructor, which isn't in the source
+                else if (member instanceof JCTree.JCMethodDecl && !((JCTree.JCMethodDecl) member).sym.isConstructor())
+                    declared.add(((JCTree.JCMethodDecl) member).sym);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.javacs;
+
+import org.junit.Test;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ZipIndexTest extends Fixtures {
+    @Test
+    public void saveIndexOfJar() throws Exception {
+        Path directory = Files.createTempDirectory("zip-index");
+        Path jar = directory.resolve("line-map.jar");
+        Path outputDirectory = directory.resolve("out");
+
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            out.putNextEntry(new JarEntry("org/javacs/LineMap.class"));
+            Files.copy(Paths.get("target/classes/org/javacs/LineMap.class"), (OutputStream) out);
+            out.closeEntry();
+        }
+
+        JavacHolder compiler = new JavacHolder(Collections.singletonList(jar), Collections.emptyList(), outputDirectory);
+        StringFileObject file = new StringFileObject("class UseJar { org.javacs.LineMap lines; }", Paths.get("UseJar.java"));
+        DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
+
+        compiler.onError(errors);
+        compiler.compile(compiler.parse(file));
+        compiler.jarsIndexed().get().get();
+
+        assertThat(errors.getDiagnostics(), empty());
+        assertThat(Files.exists(outputDirectory.resolve(JavacHolder.ZIP_INDEX).resolve("line-map.jar.index")), equalTo(true));
+    }
+}